@@ -0,0 +1,301 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+/**
+ * A 3d affine transform (a 3x3 matrix plus a translation) applied to track points in
+ * bulk. Transforms can be built from a .trk header to move points between TrackVis
+ * voxmm space, voxel index space and RAS (scanner) space, combined and inverted.
+ *
+ * Points are transformed in place in the columnar arrays of TrackCoords or
+ * TrackColumns, or on the fly while streaming through a TrackVisitor. The inner
+ * loop is a straight run over the x, y and z arrays with no branches or calls so
+ * the JIT can vectorize it.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class AffineTransform {
+
+	// tracks per unit of parallel work: small so a store of a few long tracks still
+	// spreads over the threads
+
+	private static final long GRAIN = 16;
+
+	// row major: x' = m[0]*x + m[1]*y + m[2]*z + m[3], and so on
+
+	private final double[] m;
+
+	private AffineTransform(double[] m) {
+
+		this.m = m;
+	}
+
+	public static AffineTransform identity() {
+
+		return new AffineTransform(new double[] {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0});
+	}
+
+	/**
+	 * The transform given by the top three rows of a 4x4 matrix.
+	 */
+	public static AffineTransform of(float[][] matrix) {
+
+		double[] m = new double[12];
+
+		for (int r = 0; r < 3; r++) {
+			for (int c = 0; c < 4; c++) {
+				m[r * 4 + c] = matrix[r][c];
+			}
+		}
+
+		return new AffineTransform(m);
+	}
+
+	public static AffineTransform scale(double sx, double sy, double sz) {
+
+		return new AffineTransform(new double[] {sx, 0, 0, 0, 0, sy, 0, 0, 0, 0, sz, 0});
+	}
+
+	public static AffineTransform translate(double tx, double ty, double tz) {
+
+		return new AffineTransform(new double[] {1, 0, 0, tx, 0, 1, 0, ty, 0, 0, 1, tz});
+	}
+
+	/**
+	 * From .trk voxmm space (millimeters from the corner of the first voxel) to voxel
+	 * index space (voxel centers at integer coordinates).
+	 */
+	public static AffineTransform voxmmToVoxel(Main.TrakHeader header) {
+
+		return translate(-0.5, -0.5, -0.5).after(scale(1.0 / header.xScale, 1.0 / header.yScale, 1.0 / header.zScale));
+	}
+
+	/**
+	 * From voxel index space to RAS space using the header's vox_to_ras matrix. Old
+	 * headers without a matrix (element 3,3 is 0) just scale by the voxel size.
+	 */
+	public static AffineTransform voxelToRas(Main.TrakHeader header) {
+
+		if (header.vox_to_ras[3][3] == 0)
+			return scale(header.xScale, header.yScale, header.zScale);
+
+		return of(header.vox_to_ras);
+	}
+
+	/**
+	 * From .trk voxmm space straight to RAS space.
+	 */
+	public static AffineTransform voxmmToRas(Main.TrakHeader header) {
+
+		return voxelToRas(header).after(voxmmToVoxel(header));
+	}
+
+	/**
+	 * The reorientation described by the header's invert and swap flags, in voxmm
+	 * space. Swaps are done first (xy, then yz, then zx) and then each inverted axis
+	 * is mirrored within the extent of the volume. TrackVis marks these flags as
+	 * internal so most files leave them all zero.
+	 */
+	public static AffineTransform orientationFlags(Main.TrakHeader header) {
+
+		AffineTransform t = identity();
+
+		if (header.swap_xy != 0)
+			t = permutation(1, 0, 2).after(t);
+
+		if (header.swap_yz != 0)
+			t = permutation(0, 2, 1).after(t);
+
+		if (header.swap_zx != 0)
+			t = permutation(2, 1, 0).after(t);
+
+		double ex = header.xDim * header.xScale;
+		double ey = header.yDim * header.yScale;
+		double ez = header.zDim * header.zScale;
+
+		AffineTransform mirror = new AffineTransform(new double[] {
+				header.invert_x != 0 ? -1 : 1, 0, 0, header.invert_x != 0 ? ex : 0,
+				0, header.invert_y != 0 ? -1 : 1, 0, header.invert_y != 0 ? ey : 0,
+				0, 0, header.invert_z != 0 ? -1 : 1, header.invert_z != 0 ? ez : 0});
+
+		return mirror.after(t);
+	}
+
+	// output axis r takes input axis axes[r]
+
+	private static AffineTransform permutation(int ax, int ay, int az) {
+
+		double[] m = new double[12];
+
+		m[0 * 4 + ax] = 1;
+		m[1 * 4 + ay] = 1;
+		m[2 * 4 + az] = 1;
+
+		return new AffineTransform(m);
+	}
+
+	/**
+	 * The transform that applies first and then this one.
+	 */
+	public AffineTransform after(AffineTransform first) {
+
+		double[] a = m;
+		double[] b = first.m;
+		double[] c = new double[12];
+
+		for (int r = 0; r < 3; r++) {
+			for (int col = 0; col < 4; col++) {
+				double sum = (col == 3) ? a[r * 4 + 3] : 0;
+				for (int k = 0; k < 3; k++) {
+					sum += a[r * 4 + k] * b[k * 4 + col];
+				}
+				c[r * 4 + col] = sum;
+			}
+		}
+
+		return new AffineTransform(c);
+	}
+
+	public AffineTransform inverse() {
+
+		double a = m[0], b = m[1], c = m[2];
+		double d = m[4], e = m[5], f = m[6];
+		double g = m[8], h = m[9], i = m[10];
+
+		double det = a * (e*i - f*h) - b * (d*i - f*g) + c * (d*h - e*g);
+
+		if (det == 0 || Double.isNaN(det))
+			throw new IllegalArgumentException("transform is not invertible");
+
+		double[] r = new double[12];
+
+		r[0] = (e*i - f*h) / det;
+		r[1] = (c*h - b*i) / det;
+		r[2] = (b*f - c*e) / det;
+		r[4] = (f*g - d*i) / det;
+		r[5] = (a*i - c*g) / det;
+		r[6] = (c*d - a*f) / det;
+		r[8] = (d*h - e*g) / det;
+		r[9] = (b*g - a*h) / det;
+		r[10] = (a*e - b*d) / det;
+
+		for (int row = 0; row < 3; row++) {
+			r[row * 4 + 3] = -(r[row * 4] * m[3] + r[row * 4 + 1] * m[7] + r[row * 4 + 2] * m[11]);
+		}
+
+		return new AffineTransform(r);
+	}
+
+	/**
+	 * Transform one point into out (3 values). in and out may be the same array.
+	 */
+	public void apply(float[] in, float[] out) {
+
+		double x = in[0], y = in[1], z = in[2];
+
+		out[0] = (float) (m[0] * x + m[1] * y + m[2] * z + m[3]);
+		out[1] = (float) (m[4] * x + m[5] * y + m[6] * z + m[7]);
+		out[2] = (float) (m[8] * x + m[9] * y + m[10] * z + m[11]);
+	}
+
+	/**
+	 * Transform points from (inclusive) to to (exclusive) of the coordinate arrays in place.
+	 */
+	public void apply(float[] xs, float[] ys, float[] zs, int from, int to) {
+
+		float m0 = (float) m[0], m1 = (float) m[1], m2 = (float) m[2], m3 = (float) m[3];
+		float m4 = (float) m[4], m5 = (float) m[5], m6 = (float) m[6], m7 = (float) m[7];
+		float m8 = (float) m[8], m9 = (float) m[9], m10 = (float) m[10], m11 = (float) m[11];
+
+		for (int i = from; i < to; i++) {
+
+			float x = xs[i];
+			float y = ys[i];
+			float z = zs[i];
+
+			xs[i] = m0 * x + m1 * y + m2 * z + m3;
+			ys[i] = m4 * x + m5 * y + m6 * z + m7;
+			zs[i] = m8 * x + m9 * y + m10 * z + m11;
+		}
+	}
+
+	public void apply(TrackCoords coords) {
+
+		apply(coords.xs, coords.ys, coords.zs, 0, coords.count());
+	}
+
+	/**
+	 * Transform every point of a track store in place using the given number of threads.
+	 * Each thread updates the stored bounds of the tracks it transforms.
+	 */
+	public void apply(final TrackColumns columns, int threads) {
+
+		final float[] xs = columns.xs();
+		final float[] ys = columns.ys();
+		final float[] zs = columns.zs();
+
+		Parallel.forRange(columns.numTracks(), threads, GRAIN, new Parallel.RangeBody() {
+
+			@Override
+			public void run(int worker, long from, long to) {
+
+				apply(xs, ys, zs, columns.firstPoint(from), columns.firstPoint(to));
+
+				columns.recalcBounds(from, to);
+			}
+		});
+	}
+
+	/**
+	 * A streaming stage: transformed copies of the tracks it visits are passed on to
+	 * next. The visited tracks themselves are left alone.
+	 */
+	public TrackVisitor visitor(final TrackVisitor next) {
+
+		return new TrackVisitor() {
+
+			private final TrackCoords copy = new TrackCoords();
+
+			@Override
+			public void visit(long track, TrackCoords coords) {
+
+				copy.set(coords);
+
+				apply(copy);
+
+				next.visit(track, copy);
+			}
+		};
+	}
+
+	/**
+	 * A view of a track source whose tracks come out transformed.
+	 */
+	public TrackSource source(final TrackSource source) {
+
+		return new TrackSource() {
+
+			@Override
+			public long numTracks() {
+
+				return source.numTracks();
+			}
+
+			@Override
+			public int pointCount(long track) {
+
+				return source.pointCount(track);
+			}
+
+			@Override
+			public void read(long track, TrackCoords coords) {
+
+				source.read(track, coords);
+
+				apply(coords);
+			}
+		};
+	}
+}
@@ -0,0 +1,258 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the same pipeline over many tractogram files. Each file goes through three
+ * stages: load (I/O bound), compute (CPU bound), and store (I/O bound). Loading and
+ * storing run on a pool of I/O threads and computing on a fixed pool of CPU workers
+ * so slow disks do not starve the CPUs and vice versa. The stages of a file are
+ * chained, not waited on, so every thread of both pools is always free for the next
+ * file that is ready for its stage.
+ *
+ * Before a file is loaded the estimated memory it needs is reserved from a fixed
+ * budget and it is returned when the file is finished, so at most a budget's worth
+ * of files are in memory at once. A failure in one file is recorded in that file's
+ * result and does not affect the others.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class BatchProcessor {
+
+	public interface Loader<T> {
+
+		T load(String filename) throws Exception;
+	}
+
+	public interface Computer<T, R> {
+
+		R compute(String filename, T loaded) throws Exception;
+	}
+
+	public interface Storer<R> {
+
+		void store(String filename, R result) throws Exception;
+	}
+
+	/**
+	 * Guesses how many bytes of memory processing a file needs.
+	 */
+	public interface MemoryEstimate {
+
+		long bytesNeeded(String filename);
+	}
+
+	public static class Pipeline<T, R> {
+
+		final Loader<T> loader;
+		final Computer<T, R> computer;
+		final Storer<R> storer;
+
+		/**
+		 * storer may be null if the results are only returned.
+		 */
+		public Pipeline(Loader<T> loader, Computer<T, R> computer, Storer<R> storer) {
+
+			this.loader = loader;
+			this.computer = computer;
+			this.storer = storer;
+		}
+	}
+
+	public static class FileResult<R> {
+
+		public final String filename;
+		public final R result;
+		public final Throwable error;
+		public final long millis;
+
+		FileResult(String filename, R result, Throwable error, long millis) {
+
+			this.filename = filename;
+			this.result = result;
+			this.error = error;
+			this.millis = millis;
+		}
+
+		public boolean succeeded() {
+
+			return error == null;
+		}
+	}
+
+	/**
+	 * Estimates memory as a multiple of the file's size on disk.
+	 */
+	public static MemoryEstimate fileSizeTimes(final double factor) {
+
+		return new MemoryEstimate() {
+
+			@Override
+			public long bytesNeeded(String filename) {
+
+				return (long) (new File(filename).length() * factor);
+			}
+		};
+	}
+
+	private static final long MB = 1024 * 1024;
+
+	private final int ioThreads;
+
+	private final int cpuThreads;
+
+	private final long memoryBudget;
+
+	private final MemoryEstimate estimate;
+
+	/**
+	 * @param ioThreads number of files that can be loading or storing at once
+	 * @param cpuThreads number of files that can be computing at once
+	 * @param memoryBudget bytes of memory the files in flight may use in total
+	 * @param estimate how much of the budget one file needs
+	 */
+	public BatchProcessor(int ioThreads, int cpuThreads, long memoryBudget, MemoryEstimate estimate) {
+
+		if (ioThreads < 1 || cpuThreads < 1)
+			throw new IllegalArgumentException("thread counts must be positive");
+
+		if (memoryBudget < MB)
+			throw new IllegalArgumentException("memory budget must be at least 1 MB");
+
+		this.ioThreads = ioThreads;
+		this.cpuThreads = cpuThreads;
+		this.memoryBudget = memoryBudget;
+		this.estimate = estimate;
+	}
+
+	/**
+	 * Process all the files and return their results in the same order as the files.
+	 */
+	public <T, R> List<FileResult<R>> run(List<String> filenames, final Pipeline<T, R> pipeline)
+		throws InterruptedException
+	{
+		final int budgetMB = (int) Math.min(Integer.MAX_VALUE, memoryBudget / MB);
+
+		final Semaphore memory = new Semaphore(budgetMB, true);
+
+		final ExecutorService ioPool = Executors.newFixedThreadPool(ioThreads);
+
+		final ExecutorService cpuPool = Executors.newFixedThreadPool(cpuThreads);
+
+		List<CompletableFuture<FileResult<R>>> futures = new ArrayList<>();
+
+		try {
+
+			for (final String filename : filenames) {
+
+				// memory is reserved here, in the calling thread, so no pool thread ever
+				// waits for it. a file bigger than the whole budget still runs, just on its own
+
+				long wanted = (estimate.bytesNeeded(filename) + MB - 1) / MB;
+
+				final int permits = (int) Math.max(1, Math.min(budgetMB, wanted));
+
+				memory.acquire(permits);
+
+				final long start = System.currentTimeMillis();
+
+				// each stage is handed to the next stage's pool when it finishes so no
+				// thread blocks waiting on another stage
+
+				CompletableFuture<T> loaded = CompletableFuture.supplyAsync(() -> {
+
+					try {
+
+						return pipeline.loader.load(filename);
+
+					} catch (Exception e) {
+
+						throw new CompletionException(e);
+					}
+
+				}, ioPool);
+
+				CompletableFuture<R> computed = loaded.thenApplyAsync(data -> {
+
+					try {
+
+						return pipeline.computer.compute(filename, data);
+
+					} catch (Exception e) {
+
+						throw new CompletionException(e);
+					}
+
+				}, cpuPool);
+
+				CompletableFuture<R> stored = computed.thenApplyAsync(result -> {
+
+					try {
+
+						if (pipeline.storer != null)
+							pipeline.storer.store(filename, result);
+
+						return result;
+
+					} catch (Exception e) {
+
+						throw new CompletionException(e);
+					}
+
+				}, ioPool);
+
+				// a failure in any stage, including OutOfMemoryError, ends up in the file's
+				// result: one bad file should not end the batch
+
+				futures.add(stored.handle((result, error) -> {
+
+					memory.release(permits);
+
+					long millis = System.currentTimeMillis() - start;
+
+					if (error instanceof CompletionException && error.getCause() != null)
+						error = error.getCause();
+
+					if (error != null)
+						return new FileResult<R>(filename, null, error, millis);
+
+					return new FileResult<R>(filename, result, null, millis);
+				}));
+			}
+
+			List<FileResult<R>> results = new ArrayList<>();
+
+			for (int i = 0; i < futures.size(); i++) {
+
+				try {
+
+					results.add(futures.get(i).get());
+
+				} catch (ExecutionException e) {
+
+					results.add(new FileResult<R>(filenames.get(i), null, e.getCause(), 0));
+				}
+			}
+
+			return results;
+
+		} finally {
+
+			ioPool.shutdownNow();
+
+			cpuPool.shutdownNow();
+		}
+	}
+}
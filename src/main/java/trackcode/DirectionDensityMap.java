@@ -0,0 +1,418 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A direction encoded color density map (DEC-TDI). For every voxel of a grid the
+ * absolute x, y and z extents of all the track segments passing through it are
+ * summed, giving a red, green and blue value per voxel. Segments are split into
+ * pieces no longer than half the smallest voxel size and each piece is added to the
+ * voxel holding its middle, so a voxel's total is the length weighted direction of
+ * the tracks crossing it.
+ *
+ * Maps are built in parallel: each thread sums into its own buffer of 3 values per
+ * voxel and the buffers are added together at the end. When reading a file, the
+ * calling thread decodes tracks into a few reusable batches that worker threads
+ * consume, so memory use is the output buffers plus a fixed number of batches.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class DirectionDensityMap {
+
+	// points per batch handed from the decoder to the workers
+
+	private static final int BATCH_POINTS = 1 << 16;
+
+	private final VoxelGrid grid;
+
+	// 3 values per voxel: |dx|, |dy|, |dz| sums
+
+	private final float[] colors;
+
+	private DirectionDensityMap(VoxelGrid grid, float[] colors) {
+
+		this.grid = grid;
+		this.colors = colors;
+	}
+
+	public VoxelGrid grid() {
+
+		return grid;
+	}
+
+	/**
+	 * The summed |dx|, |dy| and |dz| of voxel v are at 3*v, 3*v+1 and 3*v+2.
+	 */
+	public float[] colors() {
+
+		return colors;
+	}
+
+	/**
+	 * The map of a .trk file on the file's own voxel grid.
+	 */
+	public static DirectionDensityMap fromTrkFile(final String filename, int threads) throws IOException {
+
+		VoxelGrid grid = VoxelGrid.fromHeader(Main.readTrkHeader(filename));
+
+		return stream(grid, threads, new Scan() {
+
+			@Override
+			public void run(TrackVisitor visitor) throws IOException {
+
+				Main.scanTrkFile(filename, null, visitor);
+			}
+		});
+	}
+
+	/**
+	 * The map of a .tck file on the given grid (.tck files do not carry one).
+	 */
+	public static DirectionDensityMap fromTckFile(final String filename, VoxelGrid grid, int threads) throws IOException {
+
+		return stream(grid, threads, new Scan() {
+
+			@Override
+			public void run(TrackVisitor visitor) throws IOException {
+
+				Main.scanTckFile(filename, null, visitor);
+			}
+		});
+	}
+
+	/**
+	 * The map of all the tracks of a random access source.
+	 */
+	public static DirectionDensityMap compute(final TrackSource source, final VoxelGrid grid, int threads) {
+
+		final float[][] buffers = buffers(grid, threads);
+
+		Parallel.forRange(source.numTracks(), buffers.length, new Parallel.RangeBody() {
+
+			@Override
+			public void run(int worker, long from, long to) {
+
+				TrackCoords coords = new TrackCoords();
+
+				for (long t = from; t < to; t++) {
+
+					source.read(t, coords);
+
+					accumulate(grid, buffers[worker], coords.xs, coords.ys, coords.zs, 0, coords.count());
+				}
+			}
+		});
+
+		return new DirectionDensityMap(grid, merge(buffers));
+	}
+
+	// a decoder that shows every track to a visitor
+
+	interface Scan {
+
+		void run(TrackVisitor visitor) throws IOException;
+	}
+
+	// a group of decoded tracks: track i is points starts[i] to starts[i+1]-1
+
+	private static class Batch {
+
+		final float[] xs = new float[BATCH_POINTS];
+		final float[] ys = new float[BATCH_POINTS];
+		final float[] zs = new float[BATCH_POINTS];
+		int[] starts = new int[256];
+		int numTracks;
+		int numPoints;
+		boolean last;
+
+		boolean fits(int count) {
+			return numPoints + count <= BATCH_POINTS;
+		}
+
+		void add(TrackCoords coords) {
+
+			int count = coords.count();
+
+			if (numTracks + 2 > starts.length)
+				starts = Arrays.copyOf(starts, starts.length * 2);
+
+			starts[numTracks] = numPoints;
+
+			System.arraycopy(coords.xs, 0, xs, numPoints, count);
+			System.arraycopy(coords.ys, 0, ys, numPoints, count);
+			System.arraycopy(coords.zs, 0, zs, numPoints, count);
+
+			numPoints += count;
+
+			numTracks++;
+
+			starts[numTracks] = numPoints;
+		}
+
+		void clear() {
+			numTracks = 0;
+			numPoints = 0;
+		}
+	}
+
+	static DirectionDensityMap stream(final VoxelGrid grid, int threads, Scan scan) throws IOException {
+
+		final float[][] buffers = buffers(grid, threads);
+
+		final int workers = buffers.length;
+
+		final BlockingQueue<Batch> full = new ArrayBlockingQueue<>(2 * workers + 1);
+
+		final BlockingQueue<Batch> empty = new ArrayBlockingQueue<>(2 * workers + 1);
+
+		for (int i = 0; i < 2 * workers; i++) {
+			empty.add(new Batch());
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+		List<Future<Object>> futures = new ArrayList<>();
+
+		for (int w = 0; w < workers; w++) {
+
+			final float[] buffer = buffers[w];
+
+			futures.add(pool.submit(() -> {
+
+				RuntimeException failure = null;
+
+				while (true) {
+
+					Batch batch = full.take();
+
+					if (batch.last)
+						break;
+
+					// after a failure keep taking batches so the decoder never blocks
+
+					if (failure == null) {
+
+						try {
+
+							for (int t = 0; t < batch.numTracks; t++) {
+								accumulate(grid, buffer, batch.xs, batch.ys, batch.zs, batch.starts[t], batch.starts[t + 1]);
+							}
+
+						} catch (RuntimeException e) {
+
+							failure = e;
+						}
+					}
+
+					batch.clear();
+
+					empty.put(batch);
+				}
+
+				if (failure != null)
+					throw failure;
+
+				return null;
+			}));
+		}
+
+		pool.shutdown();
+
+		try {
+
+			final Batch[] current = new Batch[] {empty.take()};
+
+			final TrackCoords piece = new TrackCoords();
+
+			scan.run(new TrackVisitor() {
+
+				@Override
+				public void visit(long track, TrackCoords coords) {
+
+					try {
+
+						int first = 0;
+
+						int count = coords.count();
+
+						// a track longer than a batch is sent in overlapping pieces so no segment is lost
+
+						while (count - first > BATCH_POINTS) {
+
+							piece.setCount(BATCH_POINTS);
+
+							System.arraycopy(coords.xs, first, piece.xs, 0, BATCH_POINTS);
+							System.arraycopy(coords.ys, first, piece.ys, 0, BATCH_POINTS);
+							System.arraycopy(coords.zs, first, piece.zs, 0, BATCH_POINTS);
+
+							send(piece);
+
+							first += BATCH_POINTS - 1;
+						}
+
+						if (first == 0) {
+
+							send(coords);
+						}
+						else {
+
+							piece.setCount(count - first);
+
+							System.arraycopy(coords.xs, first, piece.xs, 0, count - first);
+							System.arraycopy(coords.ys, first, piece.ys, 0, count - first);
+							System.arraycopy(coords.zs, first, piece.zs, 0, count - first);
+
+							send(piece);
+						}
+
+					} catch (InterruptedException e) {
+
+						Thread.currentThread().interrupt();
+
+						throw new RuntimeException(e);
+					}
+				}
+
+				private void send(TrackCoords coords) throws InterruptedException {
+
+					if (!current[0].fits(coords.count())) {
+
+						full.put(current[0]);
+
+						current[0] = empty.take();
+					}
+
+					current[0].add(coords);
+				}
+			});
+
+			full.put(current[0]);
+
+			for (int w = 0; w < workers; w++) {
+
+				Batch last = new Batch();
+
+				last.last = true;
+
+				full.put(last);
+			}
+
+			for (Future<Object> future : futures) {
+				future.get();
+			}
+
+		} catch (InterruptedException e) {
+
+			pool.shutdownNow();
+
+			Thread.currentThread().interrupt();
+
+			throw new IOException("interrupted while building a direction density map", e);
+
+		} catch (ExecutionException e) {
+
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+
+			throw new RuntimeException(e.getCause());
+
+		} finally {
+
+			// a decoding failure leaves the workers waiting
+
+			pool.shutdownNow();
+		}
+
+		return new DirectionDensityMap(grid, merge(buffers));
+	}
+
+	private static float[][] buffers(VoxelGrid grid, int threads) {
+
+		if (3 * grid.numVoxels() > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("grid too large");
+
+		int workers = Math.max(1, threads);
+
+		float[][] buffers = new float[workers][];
+
+		for (int w = 0; w < workers; w++) {
+			buffers[w] = new float[(int) (3 * grid.numVoxels())];
+		}
+
+		return buffers;
+	}
+
+	// add all the buffers into the first one, in parallel over ranges of voxels
+
+	private static float[] merge(final float[][] buffers) {
+
+		final float[] total = buffers[0];
+
+		Parallel.forRange(total.length, buffers.length, new Parallel.RangeBody() {
+
+			@Override
+			public void run(int worker, long from, long to) {
+
+				for (int b = 1; b < buffers.length; b++) {
+
+					float[] buffer = buffers[b];
+
+					for (int i = (int) from; i < to; i++) {
+						total[i] += buffer[i];
+					}
+				}
+			}
+		});
+
+		return total;
+	}
+
+	// add the segments of the points from..to-1 to the buffer
+
+	static void accumulate(VoxelGrid grid, float[] buffer, float[] xs, float[] ys, float[] zs, int from, int to) {
+
+		float step = grid.minVoxelSize() / 2;
+
+		for (int i = from; i < to - 1; i++) {
+
+			float dx = xs[i+1] - xs[i];
+			float dy = ys[i+1] - ys[i];
+			float dz = zs[i+1] - zs[i];
+
+			int pieces = Math.max(1, (int) Math.ceil(Math.sqrt(dx*dx + dy*dy + dz*dz) / step));
+
+			float px = Math.abs(dx) / pieces;
+			float py = Math.abs(dy) / pieces;
+			float pz = Math.abs(dz) / pieces;
+
+			for (int p = 0; p < pieces; p++) {
+
+				float t = (p + 0.5f) / pieces;
+
+				long v = grid.voxel(xs[i] + t*dx, ys[i] + t*dy, zs[i] + t*dz);
+
+				if (v < 0)
+					continue;
+
+				int o = 3 * (int) v;
+
+				buffer[o] += px;
+				buffer[o+1] += py;
+				buffer[o+2] += pz;
+			}
+		}
+	}
+}
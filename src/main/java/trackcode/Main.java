@@ -6,6 +6,7 @@ package trackcode;
 import java.io.BufferedInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -14,7 +15,7 @@ import java.io.PrintStream;
 import java.io.PushbackInputStream;
 import java.math.BigDecimal;
 import java.math.MathContext;
-import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -34,7 +35,11 @@ public class Main {
 	
 	// TRAKVIS code =====================================================================
 
-	public static void loadTrakData() {
+	// a .trk header is always this long: its last field (hdr_size) says so
+	
+	private static final int TRK_HEADER_BYTES = 1000;
+
+	public static void loadTrakData() throws IOException {
 	
 		String filename = "/home/bdezonia/testdata/trak/DTI_Lab3_tracts.trk";
 		
@@ -72,49 +77,35 @@ public class Main {
 		System.out.println("Done iterating ragged data");
 	}
 
-	public static Tuple2<Long, Long> findStats(String filename) {
+	public static Tuple2<Long, Long> findStats(String filename) throws IOException {
 
-		Tuple2<Long,Long> tup = new Tuple2<Long, Long>(null, null);
-		
-		boolean fileIsLittleEndian = false;
-		
-		try {
-			
-			fileIsLittleEndian = TrakUtils.fileIsLittleEndian(filename);
-		
-		} catch (IOException e) {
-		
-			System.err.println("EXITING: AN IO EXCEPTION OCCURRED: " + e.getMessage());
+		return findStats(filename, null);
+	}
 
-			System.exit(1);  // return error condition
-		}
+	public static Tuple2<Long, Long> findStats(String filename, TrackFilter filter) throws IOException {
+
+		return findStats(filename, filter, null);
+	}
+
+	/**
+	 * Count the tracks and coordinates of a .trk file that pass a filter (null keeps all).
+	 * See buildEntities for the meaning of errors.
+	 */
+	public static Tuple2<Long, Long> findStats(String filename, TrackFilter filter, List<TrackFormatException> errors) throws IOException {
+
+		boolean fileIsLittleEndian = TrakUtils.fileIsLittleEndian(filename);
 		
 		File file = new File(filename);
 		
-		FileInputStream fileStream = null;
-		
-		BufferedInputStream bufStream = null;
+		FileInputStream fileStream = new FileInputStream(file);
 		
-		try {
-		
-			fileStream = new FileInputStream(file);
-			
-			bufStream = new BufferedInputStream(fileStream);
-		
-		} catch (FileNotFoundException e) {
-		
-			System.err.println("EXITING: FILE NOT FOUND: " + filename);
-			
-			System.exit(2);  // return error condition
-		}
+		BufferedInputStream bufStream = new BufferedInputStream(fileStream);
 		
 		DataInputStream dataStream = new DataInputStream(bufStream);
 
-		TrakHeader header = new TrakHeader();
-		
 		try {
 		
-			header = TrakHeader.readFromSource(dataStream, fileIsLittleEndian);
+			TrakHeader header = TrakHeader.readFromSource(dataStream, fileIsLittleEndian);
 			
 			// report header vals
 			
@@ -122,77 +113,100 @@ public class Main {
 			
 			// and then read data if desired
 
-			tup = TrakData.countEntities(dataStream, fileIsLittleEndian, header);
-			
-			dataStream.close();
+			return TrakData.countEntities(dataStream, fileIsLittleEndian, header, filter, file.length() - TRK_HEADER_BYTES, errors);
 			
-		} catch (IOException e) {
+		} finally {
 
-			System.err.println("EXITING: COULD NOT READ FILE HEADER: " + e.getMessage());
-			
-			System.exit(3);  // return error condition
+			dataStream.close();
 		}
-		
-		return tup;
 	}
 
-	public static void fillRaggedData(String filename, RaggedStorageUnsignedInt8<PolygonalChainMember> data) {
-		
-		boolean fileIsLittleEndian = false;
+	public static void fillRaggedData(String filename, RaggedStorageUnsignedInt8<PolygonalChainMember> data) throws IOException {
 		
-		try {
+		fillRaggedData(filename, data, null, null);
+	}
+
+	public static void fillRaggedData(String filename, RaggedStorageUnsignedInt8<PolygonalChainMember> data, TrackFilter filter, TrackVisitor visitor)
+		throws IOException
+	{
+		fillRaggedData(filename, data, filter, visitor, null);
+	}
+
+	/**
+	 * Load a .trk file into storage. If filter is not null only the tracks it accepts are
+	 * stored (size the storage with findStats using the same filter and errors choice).
+	 * If visitor is not null it is shown each stored track (for instance a TrackStats to
+	 * measure tracks without a second read of the file). See buildEntities for the
+	 * meaning of errors.
+	 */
+	public static void fillRaggedData(String filename, final RaggedStorageUnsignedInt8<PolygonalChainMember> data, TrackFilter filter, final TrackVisitor visitor,
+										List<TrackFormatException> errors)
+		throws IOException
+	{
+		scanTrkFile(filename, filter, new TrackVisitor() {
 			
-			fileIsLittleEndian = TrakUtils.fileIsLittleEndian(filename);
-		
-		} catch (IOException e) {
-		
-			System.err.println("EXITING: AN IO EXCEPTION OCCURRED: " + e.getMessage());
+			@Override
+			public void visit(long element, TrackCoords coords) {
+				
+				PolygonalChainMember chain = coords.toChain();
+				
+				data.place(element, chain);
+				
+				if (visitor != null)
+					visitor.visit(element, coords);
+			}
+		}, errors);
+	}
 
-			System.exit(1);  // return error condition
-		}
-		
-		File file = new File(filename);
+	/**
+	 * Read just the header of a .trk file.
+	 */
+	public static TrakHeader readTrkHeader(String filename) throws IOException {
 		
-		FileInputStream fileStream = null;
+		boolean fileIsLittleEndian = TrakUtils.fileIsLittleEndian(filename);
 		
-		BufferedInputStream bufStream = null;
+		DataInputStream dataStream =
+				new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
 		
 		try {
-		
-			fileStream = new FileInputStream(file);
 			
-			bufStream = new BufferedInputStream(fileStream);
-		
-		} catch (FileNotFoundException e) {
-		
-			System.err.println("EXITING: FILE NOT FOUND: " + filename);
+			return TrakHeader.readFromSource(dataStream, fileIsLittleEndian);
 			
-			System.exit(2);  // return error condition
+		} finally {
+			
+			dataStream.close();
 		}
+	}
+
+	public static void scanTrkFile(String filename, TrackFilter filter, TrackVisitor visitor) throws IOException {
 		
-		DataInputStream dataStream = new DataInputStream(bufStream);
+		scanTrkFile(filename, filter, visitor, null);
+	}
 
-		TrakHeader header = new TrakHeader();
+	/**
+	 * Decode a .trk file and show each track that passes the filter (null keeps all) to
+	 * the visitor without storing anything. Kept tracks are numbered from 0 in file order.
+	 * See buildEntities for the meaning of errors.
+	 */
+	public static void scanTrkFile(String filename, TrackFilter filter, TrackVisitor visitor, List<TrackFormatException> errors)
+		throws IOException
+	{
+		boolean fileIsLittleEndian = TrakUtils.fileIsLittleEndian(filename);
 		
-		try {
+		File file = new File(filename);
+		
+		DataInputStream dataStream =
+				new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
 		
-			header = TrakHeader.readFromSource(dataStream, fileIsLittleEndian);
+		try {
 			
-			// report header vals
+			TrakHeader header = TrakHeader.readFromSource(dataStream, fileIsLittleEndian);
 			
-			// header.print(System.out);
+			buildEntities(dataStream, fileIsLittleEndian, header, null, filter, visitor, file.length() - TRK_HEADER_BYTES, errors);
 			
-			// and then read data if desired
-
-			buildEntities(dataStream, fileIsLittleEndian, header, data);
+		} finally {
 			
 			dataStream.close();
-			
-		} catch (IOException e) {
-
-			System.err.println("EXITING: COULD NOT READ FILE HEADER: " + e.getMessage());
-			
-			System.exit(3);  // return error condition
 		}
 	}
 
@@ -201,6 +215,39 @@ public class Main {
 										TrakHeader header,
 										RaggedStorageUnsignedInt8<PolygonalChainMember> chains)
 		throws IOException
+	{
+		buildEntities(source, dataIsLittleEndian, header, chains, null, null);
+	}
+
+	public static void buildEntities(DataInputStream source,
+										boolean dataIsLittleEndian,
+										TrakHeader header,
+										RaggedStorageUnsignedInt8<PolygonalChainMember> chains,
+										TrackFilter filter,
+										TrackVisitor visitor)
+		throws IOException
+	{
+		buildEntities(source, dataIsLittleEndian, header, chains, filter, visitor, -1, null);
+	}
+
+	/**
+	 * chains may be null when the tracks only need to be shown to the visitor.
+	 * 
+	 * dataBytes is the number of bytes after the header or -1 if not known, in which case
+	 * the data ends where the stream ends between two tracks. If errors is null a
+	 * truncated or corrupt track throws a TrackFormatException. Otherwise the problem is
+	 * added to errors and decoding stops there, keeping the tracks before it: .trk files
+	 * have no delimiters to resynchronize on.
+	 */
+	public static void buildEntities(DataInputStream source,
+										boolean dataIsLittleEndian,
+										TrakHeader header,
+										RaggedStorageUnsignedInt8<PolygonalChainMember> chains,
+										TrackFilter filter,
+										TrackVisitor visitor,
+										long dataBytes,
+										List<TrackFormatException> errors)
+		throws IOException
 	{
 		int numScalarsPerPoint = header.n_scalars + 3;
 		
@@ -208,81 +255,119 @@ public class Main {
 		
 		long element = 0;
 
+		long fileTrack = 0;
+		
+		long consumed = 0;
+		
+		TrackCoords coords = new TrackCoords();
+
 		while (true) {
 			
 			// read a track
 			
-			int numPointsInTrack = 0;
+			int numPointsInTrack;
 
 			try {
 				
-				numPointsInTrack = TrakUtils.readInt(source, dataIsLittleEndian);
+				numPointsInTrack = TrakUtils.readPointCount(source, dataIsLittleEndian, header, fileTrack, consumed, dataBytes);
+				
+			} catch (TrackFormatException e) {
 				
-			} catch (IOException e) {
+				report(e, errors);
 				
-				// assume we could not read next item since data source is at end
+				return;
+			}
+			
+			if (numPointsInTrack < 0) {
 				
-				// so return as successful
+				// the data source is at end
 				
 				return;
 			}
 			
 			// read the track a point at a time
 
-			float[] xs = new float[numPointsInTrack];
-			float[] ys = new float[numPointsInTrack];
-			float[] zs = new float[numPointsInTrack];
+			coords.setCount(numPointsInTrack);
 			
-			for (int pt = 0; pt < numPointsInTrack; pt++) {
-				
-				// read all the scalars associated with one point in the track
-				
-				for (int sc = 0; sc < numScalarsPerPoint; sc++) {
+			float[] xs = coords.xs;
+			float[] ys = coords.ys;
+			float[] zs = coords.zs;
+			
+			try {
 				
-					// note that in here:
+				for (int pt = 0; pt < numPointsInTrack; pt++) {
 					
-					// sc == 0 : x coordinate of this one point in the track
-					// sc == 1 : y coordinate of this one point in the track
-					// sc == 2 : z coordinate of this one point in the track
-					// sc == 3 : 1st scalar of this one point in the track
-					// sc == 4 : 2nd scalar of this one point in the track
-					// etc.   : etc.
+					// read all the scalars associated with one point in the track
 					
-					float scalar = TrakUtils.readFloat(source, dataIsLittleEndian);
-
-					// YOUR JOB: do something with this scalar value
+					for (int sc = 0; sc < numScalarsPerPoint; sc++) {
 					
-					if (sc == 0)
-						xs[pt] = scalar;
-					else if (sc == 1)
-						ys[pt] = scalar;
-					else if (sc == 2)
-						zs[pt] = scalar;
+						// note that in here:
+						
+						// sc == 0 : x coordinate of this one point in the track
+						// sc == 1 : y coordinate of this one point in the track
+						// sc == 2 : z coordinate of this one point in the track
+						// sc == 3 : 1st scalar of this one point in the track
+						// sc == 4 : 2nd scalar of this one point in the track
+						// etc.   : etc.
+						
+						float scalar = TrakUtils.readFloat(source, dataIsLittleEndian);
+	
+						// YOUR JOB: do something with this scalar value
+						
+						if (sc == 0)
+							xs[pt] = scalar;
+						else if (sc == 1)
+							ys[pt] = scalar;
+						else if (sc == 2)
+							zs[pt] = scalar;
+						
+					}
+				}
+				
+				// read the properties associated with this one track
+				
+				for (int prop = 0; prop < numPropertiesPerTrack; prop++) {
+					
+					// note that in here:
 					
+					// prop == 0 : 1st property of whole track
+					// prop == 1 : 2nd property of whole track
+					// etc.      : etc.
+	
+					@SuppressWarnings("unused")
+					float property = TrakUtils.readFloat(source, dataIsLittleEndian);
+	
+					// YOUR JOB: do something with this property value
 				}
-			}
-			
-			// read the properties associated with this one track
-			
-			for (int prop = 0; prop < numPropertiesPerTrack; prop++) {
 				
-				// note that in here:
+			} catch (EOFException e) {
 				
-				// prop == 0 : 1st property of whole track
-				// prop == 1 : 2nd property of whole track
-				// etc.      : etc.
-
-				@SuppressWarnings("unused")
-				float property = TrakUtils.readFloat(source, dataIsLittleEndian);
-
-				// YOUR JOB: do something with this property value
+				// only possible when the data length is not known up front
+				
+				report(new TrackFormatException(TrackFormatException.Kind.TRUNCATED_TRACK, fileTrack, TRK_HEADER_BYTES + consumed,
+													"the file ends inside a track"), errors);
+				
+				return;
 			}
 			
+			consumed += TrakUtils.trackBytes(header, numPointsInTrack);
+			
+			fileTrack++;
+			
 			// stream.println("Just read track "+tracksSoFar);
 
-			PolygonalChainMember chain = new PolygonalChainMember(xs,ys,zs);
+			if (filter != null && !filter.accept(coords))
+				continue;
+
+			if (chains != null) {
+				
+				PolygonalChainMember chain = coords.toChain();
 			
-			chains.place(element, chain);
+				chains.place(element, chain);
+			}
+
+			if (visitor != null)
+				visitor.visit(element, coords);
 
 			element++;
 		}
@@ -432,8 +517,10 @@ public class Main {
 		// This code shows anyone who wants to compile the input data into something a proper
 		// way of going about it.
 		
-		public static Tuple2<Long,Long> countEntities(DataInput source, boolean dataIsLittleEndian, TrakHeader header) throws IOException {
-			
+		public static Tuple2<Long,Long> countEntities(DataInputStream source, boolean dataIsLittleEndian, TrakHeader header, TrackFilter filter,
+														long dataBytes, List<TrackFormatException> errors)
+			throws IOException
+		{
 			int numScalarsPerPoint = header.n_scalars + 3;
 			
 			int numPropertiesPerTrack = header.n_properties;
@@ -442,27 +529,44 @@ public class Main {
 			
 			long totalFloats = 0;
 			
+			long fileTrack = 0;
+			
+			long consumed = 0;
+			
+			// coordinates are only kept when a filter needs to see them
+			
+			TrackCoords coords = (filter == null) ? null : new TrackCoords();
+			
 			while (true) {
+		
+				// read a track
+				
+				int numPointsInTrack;
+
 				try {
-			
-					// read a track
 					
-					int numPointsInTrack = 0;
-	
-					try {
-						
-						numPointsInTrack = TrakUtils.readInt(source, dataIsLittleEndian);
-						
-					} catch (IOException e) {
-						
-						// assume we could not read next item since data source is at end
-						
-						// so return success
-						
-						return new Tuple2<Long, Long>(numElements, totalFloats);
-					}
+					numPointsInTrack = TrakUtils.readPointCount(source, dataIsLittleEndian, header, fileTrack, consumed, dataBytes);
 					
-					// read the track a point at a time
+				} catch (TrackFormatException e) {
+					
+					report(e, errors);
+					
+					return new Tuple2<Long, Long>(numElements, totalFloats);
+				}
+				
+				if (numPointsInTrack < 0) {
+					
+					// the data source is at end
+					
+					return new Tuple2<Long, Long>(numElements, totalFloats);
+				}
+				
+				// read the track a point at a time
+				
+				if (coords != null)
+					coords.setCount(numPointsInTrack);
+				
+				try {
 					
 					for (int pt = 0; pt < numPointsInTrack; pt++) {
 						
@@ -479,13 +583,19 @@ public class Main {
 							// sc == 4 : 2nd scalar of this one point in the track
 							// etc.   : etc.
 							
-							@SuppressWarnings("unused")
 							float scalar = TrakUtils.readFloat(source, dataIsLittleEndian);
 	
 							// YOUR JOB: do something with this scalar value
 							
-							if (sc < 3)
-								totalFloats++;
+							if (coords != null) {
+								if (sc == 0)
+									coords.xs[pt] = scalar;
+								else if (sc == 1)
+									coords.ys[pt] = scalar;
+								else if (sc == 2)
+									coords.zs[pt] = scalar;
+							}
+	
 						}
 					}
 					
@@ -508,18 +618,28 @@ public class Main {
 							totalFloats++;
 					}
 					
-					// stream.println("Just read track "+tracksSoFar);
-					
-					numElements++;
+				} catch (EOFException e) {
 					
-				} catch (Exception e) {
-	
-					// dies mid track : assume it is some weird error
+					// only possible when the data length is not known up front
 					
-					System.out.println("Unknown error: " + e.getMessage() + " Exiting.");
+					report(new TrackFormatException(TrackFormatException.Kind.TRUNCATED_TRACK, fileTrack, TRK_HEADER_BYTES + consumed,
+														"the file ends inside a track"), errors);
 					
-					return new Tuple2<Long, Long>(0L, 0L);
+					return new Tuple2<Long, Long>(numElements, totalFloats);
 				}
+				
+				consumed += TrakUtils.trackBytes(header, numPointsInTrack);
+				
+				fileTrack++;
+				
+				// stream.println("Just read track "+tracksSoFar);
+				
+				if (coords != null && !filter.accept(coords))
+					continue;
+				
+				totalFloats += 3L * numPointsInTrack;
+				
+				numElements++;
 			}
 		}
 	}
@@ -623,6 +743,76 @@ public class Main {
 			}
 		}
 
+		/**
+		 * The number of bytes a track with the given number of points takes in a .trk file.
+		 */
+		public static long trackBytes(TrakHeader header, int numPoints) {
+			
+			return 4 + 4L * numPoints * (header.n_scalars + 3) + 4L * header.n_properties;
+		}
+		
+		/**
+		 * Read the point count that starts a track, or return -1 if the data has ended.
+		 * dataBytes is the size of the data section (-1 if not known) and consumed is how
+		 * much of it has been read so far. A count that can not be right or a track that
+		 * does not fit in what is left of the data is reported as a TrackFormatException.
+		 */
+		public static int readPointCount(DataInputStream source, boolean dataIsLittleEndian, TrakHeader header,
+											long track, long consumed, long dataBytes)
+			throws IOException
+		{
+			long offset = TRK_HEADER_BYTES + consumed;
+			
+			int count;
+			
+			if (dataBytes >= 0) {
+				
+				long remaining = dataBytes - consumed;
+				
+				if (remaining == 0)
+					return -1;
+				
+				if (remaining < 4)
+					throw new TrackFormatException(TrackFormatException.Kind.TRUNCATED_TRACK, track, offset,
+													"the file ends inside a track");
+				
+				count = readInt(source, dataIsLittleEndian);
+			}
+			else {
+				
+				// a clean end of the stream between tracks is the end of the data
+				
+				int b0 = source.read();
+				
+				if (b0 < 0)
+					return -1;
+				
+				int b1 = source.read();
+				int b2 = source.read();
+				int b3 = source.read();
+				
+				if ((b1 | b2 | b3) < 0)
+					throw new TrackFormatException(TrackFormatException.Kind.TRUNCATED_TRACK, track, offset,
+													"the file ends inside a track");
+				
+				if (dataIsLittleEndian)
+					count = (b3 << 24) | (b2 << 16) | (b1 << 8) | (b0 << 0);
+				else
+					count = (b0 << 24) | (b1 << 16) | (b2 << 8) | (b3 << 0);
+			}
+			
+			if (count < 0)
+				throw new TrackFormatException(TrackFormatException.Kind.BAD_POINT_COUNT, track, offset,
+												"negative point count " + count);
+			
+			if (dataBytes >= 0 && trackBytes(header, count) > dataBytes - consumed)
+				throw new TrackFormatException(TrackFormatException.Kind.TRUNCATED_TRACK, track, offset,
+												"track of " + count + " points needs " + trackBytes(header, count) +
+												" bytes but only " + (dataBytes - consumed) + " remain");
+			
+			return count;
+		}
+		
 		public static float readFloat(DataInput source, boolean dataIsLittleEndian) throws IOException {
 			
 			if (dataIsLittleEndian) {
@@ -645,7 +835,7 @@ public class Main {
 
 	// MRTRIX3 code =====================================================================
 	
-	private enum DataType{ 
+	enum DataType{ 
 		Unknown, 	// unknown data type
 		Float32, 	// 32-bit floating-point (native endian-ness)
 		Float32BE, 	// 32-bit floating-point (big-endian)
@@ -670,201 +860,345 @@ public class Main {
 		}
 	}
 	
-	public static Tuple2<Long,Long> preprocessTckFile(String filename) {
-		
-		File file = new File(filename);
+	/**
+	 * The type of the values of a .tck file and the byte position of its first triplet.
+	 */
+	public static class TckLayout {
 		
-		FileInputStream fileStream = null;
+		public final DataType dataType;
 		
-		PushbackInputStream pbStream = null;
+		public final int bytesPerValue;
 		
-		try {
+		public final long dataOffset;
 		
-			fileStream = new FileInputStream(file);
+		TckLayout(DataType dataType, long dataOffset) {
 			
-			pbStream = new PushbackInputStream(fileStream);
-		
-		} catch (FileNotFoundException e) {
+			this.dataType = dataType;
+			this.bytesPerValue = numBytes(dataType);
+			this.dataOffset = dataOffset;
+		}
 		
-			System.err.println("EXITING: FILE NOT FOUND: " + filename);
+		public long tripletBytes() {
 			
-			System.exit(1);  // return error condition
+			return 3L * bytesPerValue;
 		}
+	}
+	
+	/**
+	 * Read the header of a .tck file and find where its data starts: at the offset given
+	 * by the header's "file: . offset" entry or, in a file without one, right after the
+	 * END line. Every .tck reader starts from here, so they all agree on where each
+	 * triplet is even when the end of the file is damaged.
+	 */
+	public static TckLayout readTckLayout(File file) throws IOException {
+		
+		FileInputStream fileStream = new FileInputStream(file);
 		
 		try {
-			DataType dataType = readHeader(pbStream, fileStream);
-
-			// position file point past possible garbage bytes due to data alignment issues
 			
-			long pos = fileStream.getChannel().position();
-			long remaining = file.length() - pos;
-			long cruft = remaining % (3 * numBytes(dataType));
-			fileStream.getChannel().position(pos+cruft);
+			PushbackInputStream pbStream = new PushbackInputStream(fileStream);
 			
-			BufferedInputStream bufStr = new BufferedInputStream(fileStream);
+			long[] dataOffset = new long[1];
 			
-			DataInputStream dataStream = new DataInputStream(bufStr);
+			DataType dataType = readHeader(pbStream, fileStream, dataOffset);
 			
-			long numTracks = 0;
-			long numPoints = 0;
+			if (numBytes(dataType) == 0)
+				throw new TrackFormatException(TrackFormatException.Kind.UNKNOWN_DATATYPE, -1, -1,
+												"unsupported .tck datatype " + dataType + " in " + file);
 			
-			float x = getBigEndianFloat(dataStream, dataType);
-			float y = getBigEndianFloat(dataStream, dataType);
-			float z = getBigEndianFloat(dataStream, dataType);
-	
-			while( ! (Float.isInfinite(x) && Float.isInfinite(y) && Float.isInfinite(z)) ) {
-				
-				long thisTrackSize = 0;
-				
-				while ( ! (Float.isNaN(x) && Float.isNaN(y) && Float.isNaN(z)) ) {
-					
-					thisTrackSize++;
-					
-					x = getBigEndianFloat(dataStream, dataType);
-					y = getBigEndianFloat(dataStream, dataType);
-					z = getBigEndianFloat(dataStream, dataType);
-				}
-				
-				if (thisTrackSize > 0) {
-					
-					// make a track
-		
-					numPoints += thisTrackSize;
-					numTracks++;
-					
-				}
-				
-				// finished a track
-				
-				x = getBigEndianFloat(dataStream, dataType);
-				y = getBigEndianFloat(dataStream, dataType);
-				z = getBigEndianFloat(dataStream, dataType);
-				
-			}
+			long start = (dataOffset[0] >= 0) ? dataOffset[0] : fileStream.getChannel().position();
 			
-			// finished the file
-		
-			dataStream.close();
+			if (start > file.length())
+				throw new TrackFormatException(TrackFormatException.Kind.BAD_HEADER, -1, -1,
+												"the .tck data offset " + start + " is past the end of " + file);
 			
-			BigDecimal avgTrackSize = BigDecimal.ZERO;
+			return new TckLayout(dataType, start);
 			
-			if (numTracks > 0) {
-				
-				MathContext context = new MathContext(2);
-			
-				avgTrackSize = BigDecimal.valueOf(numPoints).divide(BigDecimal.valueOf(numTracks), context);
-			}
+		} finally {
 			
-			System.out.println("totalTracks    = " + numTracks);
-			System.out.println("totalPoints    = " + numPoints);
-			System.out.println("avg track size = " + avgTrackSize.doubleValue());
-			
-			return new Tuple2<Long,Long>(numTracks, numPoints);
-		}
-		catch (IOException e) {
-			
-			System.out.println("exception " + e);
+			fileStream.close();
 		}
-		return new Tuple2<Long,Long>(0L, 0L);
+	}
+	
+	public static Tuple2<Long,Long> preprocessTckFile(String filename) throws IOException {
+		
+		return preprocessTckFile(filename, null);
 	}
 
-	public static void readTckFile(String filename, RaggedStorageUnsignedInt8<PolygonalChainMember> data) {
+	public static Tuple2<Long,Long> preprocessTckFile(String filename, TrackFilter filter) throws IOException {
+		
+		return preprocessTckFile(filename, filter, null);
+	}
 
-		File file = new File(filename);
+	/**
+	 * Count the tracks and points of a .tck file that pass a filter (null keeps all).
+	 * See scanTckFile for the meaning of errors.
+	 */
+	public static Tuple2<Long,Long> preprocessTckFile(String filename, TrackFilter filter, List<TrackFormatException> errors)
+		throws IOException
+	{
+		long[] totals = new long[2];
 		
-		FileInputStream fileStream = null;
+		decodeTckFile(filename, filter, null, errors, totals);
 		
-		PushbackInputStream pbStream = null;
+		long numTracks = totals[0];
+		long numPoints = totals[1];
 		
-		try {
+		BigDecimal avgTrackSize = BigDecimal.ZERO;
 		
-			fileStream = new FileInputStream(file);
+		if (numTracks > 0) {
 			
-			pbStream = new PushbackInputStream(fileStream);
+			MathContext context = new MathContext(2);
 		
-		} catch (FileNotFoundException e) {
+			avgTrackSize = BigDecimal.valueOf(numPoints).divide(BigDecimal.valueOf(numTracks), context);
+		}
+		
+		System.out.println("totalTracks    = " + numTracks);
+		System.out.println("totalPoints    = " + numPoints);
+		System.out.println("avg track size = " + avgTrackSize.doubleValue());
 		
-			System.err.println("EXITING: FILE NOT FOUND: " + filename);
+		return new Tuple2<Long,Long>(numTracks, numPoints);
+	}
+
+	public static void readTckFile(String filename, RaggedStorageUnsignedInt8<PolygonalChainMember> data) throws IOException {
+
+		readTckFile(filename, data, null, null);
+	}
+
+	public static void readTckFile(String filename, RaggedStorageUnsignedInt8<PolygonalChainMember> data, TrackFilter filter, TrackVisitor visitor)
+		throws IOException
+	{
+		readTckFile(filename, data, filter, visitor, null);
+	}
+
+	/**
+	 * Load a .tck file into storage. If filter is not null only the tracks it accepts are
+	 * stored (size the storage with preprocessTckFile using the same filter and errors
+	 * choice). If visitor is not null it is shown each stored track (for instance a
+	 * TrackStats to measure tracks without a second read of the file). See scanTckFile
+	 * for the meaning of errors.
+	 */
+	public static void readTckFile(String filename, final RaggedStorageUnsignedInt8<PolygonalChainMember> data, TrackFilter filter, final TrackVisitor visitor,
+									List<TrackFormatException> errors)
+		throws IOException
+	{
+		scanTckFile(filename, filter, new TrackVisitor() {
 			
-			System.exit(1);  // return error condition
-		}
+			@Override
+			public void visit(long trackNumber, TrackCoords coords) {
+				
+				// make a track
+				
+				PolygonalChainMember chain = coords.toChain();
+				
+				data.place(trackNumber, chain);
+				
+				if (visitor != null)
+					visitor.visit(trackNumber, coords);
+			}
+		}, errors);
+	}
+	
+	public static long scanTckFile(String filename, TrackFilter filter, TrackVisitor visitor) throws IOException {
+		
+		return scanTckFile(filename, filter, visitor, null);
+	}
+	
+	/**
+	 * Decode a .tck file and show each track that passes the filter (null keeps all) to
+	 * the visitor without storing anything. Kept tracks are numbered from 0 in file order.
+	 * Returns the number of tracks shown to the visitor.
+	 * 
+	 * If errors is null a damaged file throws a TrackFormatException. Otherwise each
+	 * problem is added to errors and decoding carries on: a track with a corrupt point
+	 * is skipped up to the next NaN delimiter, and a track cut off by the end of the
+	 * file (even in the middle of a point) is dropped. Every track before it is kept.
+	 */
+	public static long scanTckFile(String filename, TrackFilter filter, TrackVisitor visitor, List<TrackFormatException> errors)
+		throws IOException
+	{
+		long[] totals = new long[2];
+		
+		decodeTckFile(filename, filter, visitor, errors, totals);
+		
+		return totals[0];
+	}
+	
+	// the one .tck decoding loop. coordinates are only kept when a filter or visitor
+	// needs them. totals gets the number of kept tracks and their number of points.
+	
+	private static void decodeTckFile(String filename, TrackFilter filter, TrackVisitor visitor,
+										List<TrackFormatException> errors, long[] totals)
+		throws IOException
+	{
+		File file = new File(filename);
+		
+		TckLayout layout = readTckLayout(file);
+		
+		DataType dataType = layout.dataType;
+		
+		long tripletBytes = layout.tripletBytes();
+		
+		FileInputStream fileStream = new FileInputStream(file);
 		
 		try {
 			
-			DataType dataType = readHeader(pbStream, fileStream);
-
-			// position file point past possible garbage bytes due to data alignment issues
+			fileStream.getChannel().position(layout.dataOffset);
 			
-			long pos = fileStream.getChannel().position();
-			long remaining = file.length() - pos;
-			long cruft = remaining % (3 * numBytes(dataType));
-			fileStream.getChannel().position(pos+cruft);
+			// the number of whole triplets left is known up front so the end of the file
+			// is found by counting rather than by an exception from the stream. a file
+			// cut inside a triplet leaves a partial one after them.
 			
-			BufferedInputStream bufStr = new BufferedInputStream(fileStream);
+			long remaining = file.length() - layout.dataOffset;
 			
-			DataInputStream dataStream = new DataInputStream(bufStr);
+			long tripletsLeft = remaining / tripletBytes;
 			
-			float x = getBigEndianFloat(dataStream, dataType);
-			float y = getBigEndianFloat(dataStream, dataType);
-			float z = getBigEndianFloat(dataStream, dataType);
+			boolean partialTriplet = (remaining % tripletBytes) != 0;
 			
-			long trackNumber = 0;
+			long offset = layout.dataOffset;
 			
-			while( ! (Float.isInfinite(x) && Float.isInfinite(y) && Float.isInfinite(z)) ) {
-				
-				ArrayList<Float> xs = new ArrayList<>();
-				ArrayList<Float> ys = new ArrayList<>();
-				ArrayList<Float> zs = new ArrayList<>();
+			DataInputStream dataStream = new DataInputStream(new BufferedInputStream(fileStream));
+			
+			TrackCoords coords = (filter != null || visitor != null) ? new TrackCoords() : null;
+			
+			long numTracks = 0;
+			long numPoints = 0;
 			
-				long thisTrackSize = 0;
+			long fileTrack = 0;
+			long thisTrackSize = 0;
+			
+			// true while skipping the rest of a damaged track
+			
+			boolean skipping = false;
+			
+			while (true) {
 				
-				while ( ! (Float.isNaN(x) && Float.isNaN(y) && Float.isNaN(z)) ) {
+				if (tripletsLeft == 0) {
 					
-					xs.add(x);
-					ys.add(y);
-					zs.add(z);
-		
-					thisTrackSize++;
+					if (thisTrackSize > 0 || skipping || partialTriplet)
+						report(new TrackFormatException(TrackFormatException.Kind.TRUNCATED_TRACK, fileTrack, offset,
+															"the file ends inside a track"), errors);
+					else
+						report(new TrackFormatException(TrackFormatException.Kind.MISSING_END_MARKER, -1, offset,
+															"the file ends without an end of data marker"), errors);
 					
-					x = getBigEndianFloat(dataStream, dataType);
-					y = getBigEndianFloat(dataStream, dataType);
-					z = getBigEndianFloat(dataStream, dataType);
+					break;
 				}
 				
-				if (thisTrackSize > 0) {
+				float x = getBigEndianFloat(dataStream, dataType);
+				float y = getBigEndianFloat(dataStream, dataType);
+				float z = getBigEndianFloat(dataStream, dataType);
+				
+				long here = offset;
+				
+				offset += tripletBytes;
+				
+				tripletsLeft--;
+				
+				boolean nanX = Float.isNaN(x);
+				boolean nanY = Float.isNaN(y);
+				boolean nanZ = Float.isNaN(z);
+				
+				if (nanX && nanY && nanZ) {
 					
-					// make a track
+					// finished a track
 					
-					PolygonalChainMember chain = new PolygonalChainMember(xs, ys, zs);
+					if (!skipping && thisTrackSize > 0 && (filter == null || filter.accept(coords))) {
+						
+						if (visitor != null)
+							visitor.visit(numTracks, coords);
+						
+						numTracks++;
+						
+						numPoints += thisTrackSize;
+					}
+					
+					if (skipping || thisTrackSize > 0)
+						fileTrack++;
+					
+					skipping = false;
 					
-					data.place(trackNumber, chain);
+					thisTrackSize = 0;
 					
-					trackNumber++;
+					if (coords != null)
+						coords.clear();
+				}
+				else if (Float.isInfinite(x) && Float.isInfinite(y) && Float.isInfinite(z)) {
+					
+					// finished the file
+					
+					if (thisTrackSize > 0 || skipping)
+						report(new TrackFormatException(TrackFormatException.Kind.TRUNCATED_TRACK, fileTrack, here,
+															"end of data marker inside a track"), errors);
+					
+					break;
+				}
+				else if (nanX || nanY || nanZ || Float.isInfinite(x) || Float.isInfinite(y) || Float.isInfinite(z)) {
+					
+					if (!skipping) {
+						
+						report(new TrackFormatException(TrackFormatException.Kind.CORRUPT_POINT, fileTrack, here,
+															"point with some but not all coordinates undefined"), errors);
+						
+						// resynchronize at the next delimiter
+						
+						skipping = true;
+						
+						thisTrackSize = 0;
+						
+						if (coords != null)
+							coords.clear();
+					}
+				}
+				else if (!skipping) {
+					
+					if (coords != null)
+						coords.add(x, y, z);
+					
+					thisTrackSize++;
 				}
-				
-				// finished a track
-				
-				x = getBigEndianFloat(dataStream, dataType);
-				y = getBigEndianFloat(dataStream, dataType);
-				z = getBigEndianFloat(dataStream, dataType);
-				
 			}
 			
-			// finished the file
-		
-			dataStream.close();
+			totals[0] = numTracks;
+			totals[1] = numPoints;
 			
-		}
-		catch (IOException e) {
+		} finally {
 			
-			System.out.println("exception " + e);
+			fileStream.close();
 		}
 	}
 	
+	// throw a problem or, when the caller collects them, record it and carry on
+	
+	private static void report(TrackFormatException e, List<TrackFormatException> errors) throws TrackFormatException {
+		
+		if (errors == null)
+			throw e;
+		
+		errors.add(e);
+	}
+	
 	public static DataType readHeader(PushbackInputStream pbStream, FileInputStream fstream) throws IOException {
 		
+		return readHeader(pbStream, fstream, null);
+	}
+	
+	// the value of a "file:" entry for data in the same file: a dot and a byte offset
+	
+	private static final Pattern FILE_ENTRY = Pattern.compile("\\.\\s+(\\d{1,18})");
+	
+	/**
+	 * Read a .tck header up to its END line. If dataOffset is not null its first entry
+	 * gets the byte offset from the header's "file: . offset" entry, or -1 if there is
+	 * no such entry.
+	 */
+	static DataType readHeader(PushbackInputStream pbStream, FileInputStream fstream, long[] dataOffset) throws IOException {
+		
 		// Do I need special line ending code? Or will java just handle?
 		
+		if (dataOffset != null)
+			dataOffset[0] = -1;
+		
 		DataType dataType = DataType.Unknown;
 		
 		Pattern p = null; 
@@ -877,6 +1211,10 @@ public class Main {
 		
 			String line = readLine(pbStream);
 		
+			if (line == null)
+				throw new TrackFormatException(TrackFormatException.Kind.BAD_HEADER, -1, -1,
+												"the .tck header has no END line");
+			
 			line = line.trim();
 
 			if (line.equalsIgnoreCase("end")) {
@@ -910,6 +1248,13 @@ public class Main {
 							
 							//System.out.println("data type set to "+dataType);
 						}
+						else if (key.trim().equalsIgnoreCase("file") && dataOffset != null) {
+							Matcher f = FILE_ENTRY.matcher(m.group(2).trim());
+							if (!f.matches())
+								throw new TrackFormatException(TrackFormatException.Kind.BAD_HEADER, -1, -1,
+																"the .tck data must follow the header in the same file");
+							dataOffset[0] = Long.parseLong(f.group(1));
+						}
 					}
 				}
 			}
@@ -962,22 +1307,32 @@ public class Main {
 	
 			
 			default:
-				return Float.POSITIVE_INFINITY;
+				throw new TrackFormatException(TrackFormatException.Kind.UNKNOWN_DATATYPE, -1, -1,
+												"can not decode .tck datatype " + dataType);
 		}
 	}
 
+	/**
+	 * Read one line of a header. Returns null at the end of the stream when there is
+	 * nothing left to read.
+	 */
 	public static String readLine(PushbackInputStream pbStream) throws IOException {
 
 		StringBuilder sb = new StringBuilder();
 		boolean done = false;
 		while (!done) {
 			int b = pbStream.read();
-			if (b == 0x0A) {  // line feed by self
+			if (b < 0) {  // end of stream
+				if (sb.length() == 0)
+					return null;
+				done = true;
+			}
+			else if (b == 0x0A) {  // line feed by self
 				done = true;
 			}
 			else if (b == 0x0D) {  // carriage return by self
 				int b2 = pbStream.read();
-				if (b2 != 0x0A) {  // or also followed by a line feed
+				if (b2 != 0x0A && b2 >= 0) {  // or also followed by a line feed
 					pbStream.unread(b2);
 				}
 				done = true;
@@ -1000,24 +1355,37 @@ public class Main {
 		}
 	}
 	
-	private static long searchTracts(RaggedStorageUnsignedInt8<PolygonalChainMember> raggedData) {
-		
-		long found = 0;
+	// the columnar kernel tests the segments straight from the mapped file: no chains
+	// are built and none are written back
+	
+	private static long searchTracts(TrackSource source) {
 		
-		PolygonalChainMember polyChain = G.CHAIN.construct();
+		return SegmentBoxKernel.search(source, 25f, 25f, 25f, 26f, 26f, 26f);
+	}
+	
+	public static void main(String[] args) {
+
+		// the loading code throws its errors so it can be used as a library. exiting is done only here.
 		
-		for (long i = 0; i < raggedData.size(); i++) {
-			raggedData.get(i, polyChain);
-			if (G.CHAIN.intersect().call(25f, 25f, 25f, 26f, 26f, 26f, polyChain))
-				found++;
-			polyChain.getMinX();
-			raggedData.set(i, polyChain);
+		try {
+			
+			runDemo();
+			
+		} catch (FileNotFoundException e) {
+			
+			System.err.println("EXITING: FILE NOT FOUND: " + e.getMessage());
+			
+			System.exit(2);  // return error condition
+			
+		} catch (IOException e) {
+			
+			System.err.println("EXITING: AN IO EXCEPTION OCCURRED: " + e.getMessage());
+			
+			System.exit(1);  // return error condition
 		}
-		
-		return found;
 	}
 	
-	public static void main(String[] args) {
+	private static void runDemo() throws IOException {
 
 		long lStart = System.currentTimeMillis();
 
@@ -1063,7 +1431,7 @@ public class Main {
 
 		System.out.println("Bounds calcing/storing took "+((d-c)/1000.0)+" secs after that");
 		
-		long numFound = searchTracts(raggedData);
+		long numFound = searchTracts(MappedTckFile.open(fname));
 
 		long e = System.currentTimeMillis();
 
@@ -0,0 +1,96 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read only memory mapping of part of a file that may be larger than 2 GB. The
+ * range is mapped as consecutive 1 GB regions. Because the region size is a multiple
+ * of 8, a value whose offset (relative to the start of the range) is a multiple of
+ * its size never straddles two regions.
+ *
+ * Reads are absolute so several threads can share one instance.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class MappedRegions {
+
+	private static final int REGION_SHIFT = 30;
+
+	private static final long REGION_MASK = (1L << REGION_SHIFT) - 1;
+
+	private final MappedByteBuffer[] regions;
+
+	private final long length;
+
+	public MappedRegions(File file, long start, long length, ByteOrder order) throws IOException {
+
+		this.length = length;
+
+		int numRegions = (int) ((length + REGION_MASK) >>> REGION_SHIFT);
+
+		regions = new MappedByteBuffer[numRegions];
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+
+			FileChannel channel = raf.getChannel();
+
+			for (int i = 0; i < numRegions; i++) {
+
+				long regionStart = ((long) i) << REGION_SHIFT;
+
+				long size = Math.min(length - regionStart, 1L << REGION_SHIFT);
+
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + regionStart, size);
+
+				regions[i].order(order);
+			}
+
+		} finally {
+
+			// mappings stay valid after the channel is closed
+
+			raf.close();
+		}
+	}
+
+	public long length() {
+
+		return length;
+	}
+
+	public byte getByte(long offset) {
+
+		return regions[(int) (offset >>> REGION_SHIFT)].get((int) (offset & REGION_MASK));
+	}
+
+	public int getInt(long offset) {
+
+		return regions[(int) (offset >>> REGION_SHIFT)].getInt((int) (offset & REGION_MASK));
+	}
+
+	public long getLong(long offset) {
+
+		return regions[(int) (offset >>> REGION_SHIFT)].getLong((int) (offset & REGION_MASK));
+	}
+
+	public float getFloat(long offset) {
+
+		return regions[(int) (offset >>> REGION_SHIFT)].getFloat((int) (offset & REGION_MASK));
+	}
+
+	public double getDouble(long offset) {
+
+		return regions[(int) (offset >>> REGION_SHIFT)].getDouble((int) (offset & REGION_MASK));
+	}
+}
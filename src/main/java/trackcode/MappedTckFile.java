@@ -0,0 +1,197 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+import nom.bdezonia.zorbage.type.geom.polygonalchain.PolygonalChainMember;
+
+import trackcode.Main.DataType;
+
+/**
+ * A .tck file opened as memory mapped regions (see MappedRegions) plus a track
+ * offset index. Once open any track can be fetched in O(1) without reading the rest
+ * of the file.
+ * The index is kept in a sidecar file next to the .tck file (see TckIndex) so it
+ * only has to be built by a full scan the first time a file is opened.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class MappedTckFile implements TrackSource {
+
+	private final File file;
+
+	private final DataType dataType;
+
+	private final int bytesPerValue;
+
+	private final long dataStart;
+
+	private final long numPoints;
+
+	// the triplet position of the first mapped point: 0 unless only a range is open
+
+	private final long firstMapped;
+
+	private final MappedRegions data;
+
+	private TckIndex index;
+
+	/**
+	 * Open a .tck file for random access. Loads the sidecar index if it is present
+	 * and up to date, otherwise builds it with one scan and saves it for next time.
+	 */
+	public static MappedTckFile open(String filename) throws IOException {
+
+		MappedTckFile tckFile = new MappedTckFile(new File(filename), 0, -1);
+
+		tckFile.index = TckIndex.loadOrBuild(tckFile);
+
+		return tckFile;
+	}
+
+	/**
+	 * Open tracks first to end-1 of a .tck file, renumbered from 0, for a process that
+	 * only works on that range. Only their slice of the saved index (see
+	 * TckIndex.loadRange) is read and only the part of the file holding their points is
+	 * mapped. The index must already exist.
+	 */
+	public static MappedTckFile openRange(String filename, File indexFile, long first, long end) throws IOException {
+
+		File file = new File(filename);
+
+		TckIndex index = TckIndex.loadRange(indexFile, file, first, end);
+
+		if (index == null)
+			throw new IOException("track index " + indexFile + " is missing or out of date for " + filename);
+
+		long n = index.numTracks();
+
+		long firstPoint = (n == 0) ? 0 : index.firstPoint(0);
+
+		long endPoint = (n == 0) ? 0 : index.firstPoint(n - 1) + index.pointCount(n - 1);
+
+		MappedTckFile tckFile = new MappedTckFile(file, firstPoint, endPoint);
+
+		tckFile.index = index;
+
+		return tckFile;
+	}
+
+	// map the points firstPoint to endPoint-1 of the data section (endPoint -1 for all of it)
+
+	private MappedTckFile(File file, long firstPoint, long endPoint) throws IOException {
+
+		this.file = file;
+
+		Main.TckLayout layout = Main.readTckLayout(file);
+
+		dataType = layout.dataType;
+
+		bytesPerValue = layout.bytesPerValue;
+
+		dataStart = layout.dataOffset;
+
+		// a partial triplet at the end of a damaged file is left out
+
+		numPoints = (file.length() - dataStart) / layout.tripletBytes();
+
+		ByteOrder order = (dataType == DataType.Float32LE || dataType == DataType.Float64LE) ?
+							ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+		if (endPoint < 0)
+			endPoint = numPoints;
+
+		if (firstPoint < 0 || endPoint < firstPoint || endPoint > numPoints)
+			throw new IOException("track index does not match " + file);
+
+		firstMapped = firstPoint;
+
+		data = new MappedRegions(file, dataStart + firstPoint * 3 * bytesPerValue,
+									(endPoint - firstPoint) * 3 * bytesPerValue, order);
+	}
+
+	public File file() {
+
+		return file;
+	}
+
+	public TckIndex index() {
+
+		return index;
+	}
+
+	/**
+	 * The number of whole x,y,z triplets in the data section (including delimiters).
+	 */
+	public long numPoints() {
+
+		return numPoints;
+	}
+
+	/**
+	 * Get one coordinate of the point (or delimiter) at the given triplet position in
+	 * the data section. axis is 0 for x, 1 for y and 2 for z. A file opened with
+	 * openRange() only has the points of its own tracks.
+	 */
+	public float coord(long point, int axis) {
+
+		long byteOffset = ((point - firstMapped) * 3 + axis) * bytesPerValue;
+
+		if (bytesPerValue == 4)
+			return data.getFloat(byteOffset);
+
+		return (float) data.getDouble(byteOffset);
+	}
+
+	@Override
+	public long numTracks() {
+
+		return index.numTracks();
+	}
+
+	@Override
+	public int pointCount(long track) {
+
+		return index.pointCount(track);
+	}
+
+	@Override
+	public void read(long track, TrackCoords coords) {
+
+		long first = index.firstPoint(track);
+
+		int count = index.pointCount(track);
+
+		coords.setCount(count);
+
+		float[] xs = coords.xs;
+		float[] ys = coords.ys;
+		float[] zs = coords.zs;
+
+		for (int i = 0; i < count; i++) {
+
+			long pt = first + i;
+
+			xs[i] = coord(pt, 0);
+			ys[i] = coord(pt, 1);
+			zs[i] = coord(pt, 2);
+		}
+	}
+
+	/**
+	 * Convenience method for code that works with zorbage chains.
+	 */
+	public PolygonalChainMember chain(long track) {
+
+		TrackCoords coords = new TrackCoords(index.pointCount(track));
+
+		read(track, coords);
+
+		return coords.toChain();
+	}
+}
@@ -0,0 +1,134 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a loop over a range of track numbers on several threads. Work is handed out
+ * in small blocks from a shared counter so threads that get short tracks do not sit
+ * idle. Each thread is told its worker number so it can keep its own buffers and
+ * partial results without locking.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class Parallel {
+
+	// every range handed to a body by forRange(count, threads, body) starts at a
+	// multiple of this
+
+	static final long BLOCK = 1024;
+
+	public interface RangeBody {
+
+		void run(int worker, long from, long to) throws Exception;
+	}
+
+	private Parallel() { }
+
+	public static int defaultThreads() {
+
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Call body for consecutive blocks of [0,count) using the given number of threads.
+	 * Any exception thrown by the body is rethrown as a RuntimeException once all the
+	 * threads have stopped.
+	 */
+	public static void forRange(long count, int threads, RangeBody body) {
+
+		forRange(count, threads, BLOCK, body);
+	}
+
+	/**
+	 * Like forRange(count, threads, body) but handing out grain units at a time. Use a
+	 * small grain when each unit is a lot of work (a grain of 1 for blocks of a file)
+	 * so the units are still spread over all the threads.
+	 */
+	public static void forRange(final long count, int threads, final long grain, final RangeBody body) {
+
+		if (grain < 1)
+			throw new IllegalArgumentException("grain must be positive");
+
+		// no more threads than there are pieces of work
+
+		threads = (int) Math.max(1, Math.min(threads, (count + grain - 1) / grain));
+
+		if (threads == 1) {
+
+			try {
+
+				body.run(0, 0, count);
+
+			} catch (RuntimeException e) {
+
+				throw e;
+
+			} catch (Exception e) {
+
+				throw new RuntimeException(e);
+			}
+
+			return;
+		}
+
+		final AtomicLong next = new AtomicLong();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+		List<Future<Object>> futures = new ArrayList<>();
+
+		for (int t = 0; t < threads; t++) {
+
+			final int worker = t;
+
+			futures.add(pool.submit(() -> {
+
+				while (true) {
+
+					long from = next.getAndAdd(grain);
+
+					if (from >= count)
+						return null;
+
+					body.run(worker, from, Math.min(count, from + grain));
+				}
+			}));
+		}
+
+		pool.shutdown();
+
+		try {
+
+			for (Future<Object> future : futures) {
+				future.get();
+			}
+
+		} catch (InterruptedException e) {
+
+			pool.shutdownNow();
+
+			Thread.currentThread().interrupt();
+
+			throw new RuntimeException(e);
+
+		} catch (ExecutionException e) {
+
+			pool.shutdownNow();
+
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,532 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A region of interest rule that a track either matches or not. Leaf regions are
+ * boxes, spheres and voxel masks; they can be restricted to a track's endpoints and
+ * combined with and / or / not.
+ *
+ * Every rule has a cheap test on the track's bounding box (mayMatch) that can only
+ * rule a track out, and a full test (matches). Combinations run all the cheap tests
+ * of their children before any full test, run full tests in order of increasing
+ * cost, and stop as soon as the answer is known.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public abstract class Roi {
+
+	/**
+	 * False only if the track whose bounds are minx, miny, minz, maxx, maxy, maxz
+	 * certainly does not match.
+	 */
+	public abstract boolean mayMatch(float[] bounds);
+
+	public abstract boolean matches(TrackCoords track, float[] bounds);
+
+	/**
+	 * A rough relative cost of the full test, used to order the children of combinations.
+	 */
+	public abstract int cost();
+
+	// factories
+
+	public static Region box(float minx, float miny, float minz, float maxx, float maxy, float maxz) {
+
+		return new Box(minx, miny, minz, maxx, maxy, maxz);
+	}
+
+	public static Region sphere(float cx, float cy, float cz, float radius) {
+
+		return new Sphere(cx, cy, cz, radius);
+	}
+
+	public static Region mask(VoxelGrid grid, boolean[] mask) {
+
+		return new Mask(grid, mask);
+	}
+
+	/**
+	 * A mask of the voxels of a label volume that have the given label.
+	 */
+	public static Region label(VoxelGrid grid, int[] labels, int label) {
+
+		boolean[] mask = new boolean[labels.length];
+
+		for (int i = 0; i < labels.length; i++) {
+			mask[i] = (labels[i] == label);
+		}
+
+		return new Mask(grid, mask);
+	}
+
+	/**
+	 * Matches tracks with at least one endpoint inside the region.
+	 */
+	public static Roi eitherEnd(Region region) {
+
+		return new Endpoints(region, false);
+	}
+
+	/**
+	 * Matches tracks with both endpoints inside the region.
+	 */
+	public static Roi bothEnds(Region region) {
+
+		return new Endpoints(region, true);
+	}
+
+	public static Roi and(Roi... rois) {
+
+		return new And(rois);
+	}
+
+	public static Roi or(Roi... rois) {
+
+		return new Or(rois);
+	}
+
+	public static Roi not(Roi roi) {
+
+		return new Not(roi);
+	}
+
+	// leaf regions
+
+	/**
+	 * A region of space: matches tracks that have any segment touching it.
+	 */
+	public static abstract class Region extends Roi {
+
+		// bounds of the region itself
+
+		final float minx, miny, minz, maxx, maxy, maxz;
+
+		Region(float minx, float miny, float minz, float maxx, float maxy, float maxz) {
+
+			this.minx = minx;
+			this.miny = miny;
+			this.minz = minz;
+			this.maxx = maxx;
+			this.maxy = maxy;
+			this.maxz = maxz;
+		}
+
+		public abstract boolean contains(float x, float y, float z);
+
+		abstract boolean touches(TrackCoords track);
+
+		@Override
+		public boolean mayMatch(float[] b) {
+
+			return b[0] <= maxx && b[3] >= minx &&
+					b[1] <= maxy && b[4] >= miny &&
+					b[2] <= maxz && b[5] >= minz;
+		}
+
+		@Override
+		public boolean matches(TrackCoords track, float[] bounds) {
+
+			return mayMatch(bounds) && touches(track);
+		}
+	}
+
+	static class Box extends Region {
+
+		Box(float minx, float miny, float minz, float maxx, float maxy, float maxz) {
+
+			super(minx, miny, minz, maxx, maxy, maxz);
+		}
+
+		@Override
+		public boolean contains(float x, float y, float z) {
+
+			return x >= minx && x <= maxx && y >= miny && y <= maxy && z >= minz && z <= maxz;
+		}
+
+		@Override
+		boolean touches(TrackCoords track) {
+
+			return SegmentBoxKernel.intersects(minx, miny, minz, maxx, maxy, maxz, track);
+		}
+
+		@Override
+		public int cost() {
+
+			return 2;
+		}
+	}
+
+	static class Sphere extends Region {
+
+		private final float cx, cy, cz, r2;
+
+		Sphere(float cx, float cy, float cz, float radius) {
+
+			super(cx - radius, cy - radius, cz - radius, cx + radius, cy + radius, cz + radius);
+
+			this.cx = cx;
+			this.cy = cy;
+			this.cz = cz;
+			this.r2 = radius * radius;
+		}
+
+		@Override
+		public boolean contains(float x, float y, float z) {
+
+			float dx = x - cx;
+			float dy = y - cy;
+			float dz = z - cz;
+
+			return dx*dx + dy*dy + dz*dz <= r2;
+		}
+
+		@Override
+		boolean touches(TrackCoords track) {
+
+			float[] xs = track.xs;
+			float[] ys = track.ys;
+			float[] zs = track.zs;
+
+			int count = track.count();
+
+			if (count == 1)
+				return contains(xs[0], ys[0], zs[0]);
+
+			for (int i = 0; i < count - 1; i++) {
+
+				// squared distance from the center to the closest point of the segment
+
+				float ux = xs[i+1] - xs[i];
+				float uy = ys[i+1] - ys[i];
+				float uz = zs[i+1] - zs[i];
+
+				float wx = cx - xs[i];
+				float wy = cy - ys[i];
+				float wz = cz - zs[i];
+
+				float len2 = ux*ux + uy*uy + uz*uz;
+
+				float t = (len2 == 0) ? 0 : (wx*ux + wy*uy + wz*uz) / len2;
+
+				if (t < 0) t = 0;
+				if (t > 1) t = 1;
+
+				float dx = wx - t * ux;
+				float dy = wy - t * uy;
+				float dz = wz - t * uz;
+
+				if (dx*dx + dy*dy + dz*dz <= r2)
+					return true;
+			}
+
+			return false;
+		}
+
+		@Override
+		public int cost() {
+
+			return 3;
+		}
+	}
+
+	/**
+	 * A binary voxel mask. Segments are tested by sampling them at intervals of half
+	 * the smallest voxel size, which can miss a segment that only clips the corner of
+	 * a voxel.
+	 */
+	static class Mask extends Region {
+
+		private final VoxelGrid grid;
+
+		private final boolean[] mask;
+
+		private final float step;
+
+		Mask(VoxelGrid grid, boolean[] mask) {
+
+			this(grid, mask, maskBounds(grid, mask));
+		}
+
+		private Mask(VoxelGrid grid, boolean[] mask, float[] b) {
+
+			super(b[0], b[1], b[2], b[3], b[4], b[5]);
+
+			if (mask.length != grid.numVoxels())
+				throw new IllegalArgumentException("mask size does not match grid");
+
+			this.grid = grid;
+			this.mask = mask;
+			this.step = grid.minVoxelSize() / 2;
+		}
+
+		private static float[] maskBounds(VoxelGrid grid, boolean[] mask) {
+
+			int mini = Integer.MAX_VALUE, minj = Integer.MAX_VALUE, mink = Integer.MAX_VALUE;
+			int maxi = -1, maxj = -1, maxk = -1;
+
+			int v = 0;
+
+			for (int k = 0; k < grid.nz; k++) {
+				for (int j = 0; j < grid.ny; j++) {
+					for (int i = 0; i < grid.nx; i++, v++) {
+						if (mask[v]) {
+							if (i < mini) mini = i;
+							if (i > maxi) maxi = i;
+							if (j < minj) minj = j;
+							if (j > maxj) maxj = j;
+							if (k < mink) mink = k;
+							if (k > maxk) maxk = k;
+						}
+					}
+				}
+			}
+
+			if (maxi < 0)  // empty mask: bounds nothing can touch
+				return new float[] {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+									Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+
+			return new float[] {
+					grid.ox + mini * grid.sx, grid.oy + minj * grid.sy, grid.oz + mink * grid.sz,
+					grid.ox + (maxi + 1) * grid.sx, grid.oy + (maxj + 1) * grid.sy, grid.oz + (maxk + 1) * grid.sz
+			};
+		}
+
+		@Override
+		public boolean contains(float x, float y, float z) {
+
+			long v = grid.voxel(x, y, z);
+
+			return v >= 0 && mask[(int) v];
+		}
+
+		@Override
+		boolean touches(TrackCoords track) {
+
+			float[] xs = track.xs;
+			float[] ys = track.ys;
+			float[] zs = track.zs;
+
+			int count = track.count();
+
+			for (int i = 0; i < count; i++) {
+
+				if (contains(xs[i], ys[i], zs[i]))
+					return true;
+
+				if (i == count - 1)
+					break;
+
+				float dx = xs[i+1] - xs[i];
+				float dy = ys[i+1] - ys[i];
+				float dz = zs[i+1] - zs[i];
+
+				int samples = (int) (Math.sqrt(dx*dx + dy*dy + dz*dz) / step);
+
+				for (int s = 1; s <= samples; s++) {
+
+					float t = ((float) s) / (samples + 1);
+
+					if (contains(xs[i] + t*dx, ys[i] + t*dy, zs[i] + t*dz))
+						return true;
+				}
+			}
+
+			return false;
+		}
+
+		@Override
+		public int cost() {
+
+			return 4;
+		}
+	}
+
+	// endpoint rule
+
+	static class Endpoints extends Roi {
+
+		private final Region region;
+
+		private final boolean both;
+
+		Endpoints(Region region, boolean both) {
+
+			this.region = region;
+			this.both = both;
+		}
+
+		@Override
+		public boolean mayMatch(float[] bounds) {
+
+			return region.mayMatch(bounds);
+		}
+
+		@Override
+		public boolean matches(TrackCoords track, float[] bounds) {
+
+			int last = track.count() - 1;
+
+			if (last < 0 || !mayMatch(bounds))
+				return false;
+
+			boolean first = region.contains(track.xs[0], track.ys[0], track.zs[0]);
+
+			if (first && !both)
+				return true;
+
+			if (!first && both)
+				return false;
+
+			return region.contains(track.xs[last], track.ys[last], track.zs[last]);
+		}
+
+		@Override
+		public int cost() {
+
+			return 1;
+		}
+	}
+
+	// combinations
+
+	private static Roi[] byCost(Roi[] rois) {
+
+		Roi[] sorted = rois.clone();
+
+		Arrays.sort(sorted, new Comparator<Roi>() {
+
+			@Override
+			public int compare(Roi a, Roi b) {
+				return Integer.compare(a.cost(), b.cost());
+			}
+		});
+
+		return sorted;
+	}
+
+	private static int totalCost(Roi[] rois) {
+
+		int sum = 0;
+
+		for (Roi roi : rois) {
+			sum += roi.cost();
+		}
+
+		return sum;
+	}
+
+	static class And extends Roi {
+
+		private final Roi[] rois;
+
+		And(Roi[] rois) {
+
+			this.rois = byCost(rois);
+		}
+
+		@Override
+		public boolean mayMatch(float[] bounds) {
+
+			for (Roi roi : rois) {
+				if (!roi.mayMatch(bounds))
+					return false;
+			}
+
+			return true;
+		}
+
+		@Override
+		public boolean matches(TrackCoords track, float[] bounds) {
+
+			if (!mayMatch(bounds))
+				return false;
+
+			for (Roi roi : rois) {
+				if (!roi.matches(track, bounds))
+					return false;
+			}
+
+			return true;
+		}
+
+		@Override
+		public int cost() {
+
+			return totalCost(rois);
+		}
+	}
+
+	static class Or extends Roi {
+
+		private final Roi[] rois;
+
+		Or(Roi[] rois) {
+
+			this.rois = byCost(rois);
+		}
+
+		@Override
+		public boolean mayMatch(float[] bounds) {
+
+			for (Roi roi : rois) {
+				if (roi.mayMatch(bounds))
+					return true;
+			}
+
+			return false;
+		}
+
+		@Override
+		public boolean matches(TrackCoords track, float[] bounds) {
+
+			for (Roi roi : rois) {
+				if (roi.mayMatch(bounds) && roi.matches(track, bounds))
+					return true;
+			}
+
+			return false;
+		}
+
+		@Override
+		public int cost() {
+
+			return totalCost(rois);
+		}
+	}
+
+	static class Not extends Roi {
+
+		private final Roi roi;
+
+		Not(Roi roi) {
+
+			this.roi = roi;
+		}
+
+		@Override
+		public boolean mayMatch(float[] bounds) {
+
+			// a track missing the inner region's bounds is a certain match, never a certain miss
+
+			return true;
+		}
+
+		@Override
+		public boolean matches(TrackCoords track, float[] bounds) {
+
+			return !roi.matches(track, bounds);
+		}
+
+		@Override
+		public int cost() {
+
+			return roi.cost();
+		}
+	}
+}
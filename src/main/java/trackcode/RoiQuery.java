@@ -0,0 +1,92 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.util.Arrays;
+
+/**
+ * Find the tracks of a TrackSource that match a Roi rule. Each track is read once,
+ * its bounds calculated, and then the rule decides (cheap bounds tests first).
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class RoiQuery {
+
+	private RoiQuery() { }
+
+	/**
+	 * Returns the numbers of the matching tracks in increasing order.
+	 */
+	public static long[] search(TrackSource source, Roi roi) {
+
+		return search(source, roi, Parallel.defaultThreads());
+	}
+
+	public static long[] search(final TrackSource source, final Roi roi, int threads) {
+
+		final long[][] found = new long[Math.max(1, threads)][];
+
+		final int[] counts = new int[found.length];
+
+		Parallel.forRange(source.numTracks(), threads, new Parallel.RangeBody() {
+
+			@Override
+			public void run(int worker, long from, long to) {
+
+				TrackCoords coords = new TrackCoords();
+
+				float[] bounds = new float[6];
+
+				long[] hits = found[worker];
+
+				if (hits == null)
+					hits = new long[64];
+
+				int n = counts[worker];
+
+				for (long i = from; i < to; i++) {
+
+					source.read(i, coords);
+
+					TrackGeometry.bounds(coords, bounds);
+
+					if (roi.matches(coords, bounds)) {
+
+						if (n == hits.length)
+							hits = Arrays.copyOf(hits, n * 2);
+
+						hits[n++] = i;
+					}
+				}
+
+				found[worker] = hits;
+
+				counts[worker] = n;
+			}
+		});
+
+		int total = 0;
+
+		for (int c : counts) {
+			total += c;
+		}
+
+		long[] result = new long[total];
+
+		int pos = 0;
+
+		for (int w = 0; w < found.length; w++) {
+
+			if (counts[w] > 0)
+				System.arraycopy(found[w], 0, result, pos, counts[w]);
+
+			pos += counts[w];
+		}
+
+		Arrays.sort(result);
+
+		return result;
+	}
+}
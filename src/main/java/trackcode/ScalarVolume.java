@@ -0,0 +1,92 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+/**
+ * A scalar image (for instance an FA map) on a voxel grid. Values are stored in a
+ * flat array in grid order (x fastest, then y, then z). Voxel values belong to voxel
+ * centers; sample() interpolates trilinearly between them.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class ScalarVolume {
+
+	private final VoxelGrid grid;
+
+	private final float[] data;
+
+	public ScalarVolume(VoxelGrid grid, float[] data) {
+
+		if (grid.numVoxels() != data.length)
+			throw new IllegalArgumentException("volume has " + data.length + " values but grid has " + grid.numVoxels() + " voxels");
+
+		this.grid = grid;
+		this.data = data;
+	}
+
+	public VoxelGrid grid() {
+
+		return grid;
+	}
+
+	public float[] data() {
+
+		return data;
+	}
+
+	/**
+	 * The trilinearly interpolated value at a point. Points within half a voxel of the
+	 * grid's edge use the edge values. Points outside the grid give NaN.
+	 */
+	public float sample(float x, float y, float z) {
+
+		// position in voxel units relative to the center of voxel 0,0,0
+
+		float u = (x - grid.ox) / grid.sx - 0.5f;
+		float v = (y - grid.oy) / grid.sy - 0.5f;
+		float w = (z - grid.oz) / grid.sz - 0.5f;
+
+		if (!(u >= -0.5f && u <= grid.nx - 0.5f &&
+				v >= -0.5f && v <= grid.ny - 0.5f &&
+				w >= -0.5f && w <= grid.nz - 0.5f))
+			return Float.NaN;
+
+		int i0 = (int) Math.floor(u);
+		int j0 = (int) Math.floor(v);
+		int k0 = (int) Math.floor(w);
+
+		float fu = u - i0;
+		float fv = v - j0;
+		float fw = w - k0;
+
+		int i1 = Math.min(i0 + 1, grid.nx - 1);
+		int j1 = Math.min(j0 + 1, grid.ny - 1);
+		int k1 = Math.min(k0 + 1, grid.nz - 1);
+
+		i0 = Math.max(i0, 0);
+		j0 = Math.max(j0, 0);
+		k0 = Math.max(k0, 0);
+
+		float c00 = lerp(value(i0, j0, k0), value(i1, j0, k0), fu);
+		float c10 = lerp(value(i0, j1, k0), value(i1, j1, k0), fu);
+		float c01 = lerp(value(i0, j0, k1), value(i1, j0, k1), fu);
+		float c11 = lerp(value(i0, j1, k1), value(i1, j1, k1), fu);
+
+		float c0 = lerp(c00, c10, fv);
+		float c1 = lerp(c01, c11, fv);
+
+		return lerp(c0, c1, fw);
+	}
+
+	private float value(int i, int j, int k) {
+
+		return data[(int) grid.index(i, j, k)];
+	}
+
+	private static float lerp(float a, float b, float t) {
+
+		return a + (b - a) * t;
+	}
+}
@@ -0,0 +1,220 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+/**
+ * Does any segment of a polyline touch an axis aligned box? This is the innermost
+ * test of every ROI search so it works directly on the columnar x, y, z arrays of
+ * a track instead of going through G.CHAIN.intersect(). Boxes are closed: touching
+ * a face counts as an intersection. A one point track intersects if its point is
+ * inside the box.
+ *
+ * There are two versions of the segment loop. The scalar one tests one segment at
+ * a time and exits on the first hit. The blocked one tests 8 segments per step and
+ * only checks for a hit at the end of each block; whether that is faster depends
+ * on the JVM and the data, so it is off by default. Choose it by running with
+ * -Dtrackcode.kernel=blocked.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class SegmentBoxKernel {
+
+	private static final int BLOCK = 8;
+
+	public static final boolean BLOCKED = "blocked".equalsIgnoreCase(System.getProperty("trackcode.kernel"));
+
+	private SegmentBoxKernel() { }
+
+	public static boolean intersects(float minx, float miny, float minz,
+										float maxx, float maxy, float maxz,
+										TrackCoords track)
+	{
+		return intersects(minx, miny, minz, maxx, maxy, maxz, track.xs, track.ys, track.zs, track.count());
+	}
+
+	public static boolean intersects(float minx, float miny, float minz,
+										float maxx, float maxy, float maxz,
+										float[] xs, float[] ys, float[] zs, int count)
+	{
+		if (count == 0)
+			return false;
+
+		if (count == 1)
+			return xs[0] >= minx && xs[0] <= maxx &&
+					ys[0] >= miny && ys[0] <= maxy &&
+					zs[0] >= minz && zs[0] <= maxz;
+
+		if (BLOCKED)
+			return blocked(minx, miny, minz, maxx, maxy, maxz, xs, ys, zs, count);
+
+		return scalar(minx, miny, minz, maxx, maxy, maxz, xs, ys, zs, count);
+	}
+
+	/**
+	 * Count the tracks of a source that intersect a box.
+	 */
+	public static long search(TrackSource source,
+								float minx, float miny, float minz,
+								float maxx, float maxy, float maxz)
+	{
+		TrackCoords coords = new TrackCoords();
+
+		long found = 0;
+
+		for (long i = 0; i < source.numTracks(); i++) {
+
+			source.read(i, coords);
+
+			if (intersects(minx, miny, minz, maxx, maxy, maxz, coords))
+				found++;
+		}
+
+		return found;
+	}
+
+	static boolean scalar(float minx, float miny, float minz,
+							float maxx, float maxy, float maxz,
+							float[] xs, float[] ys, float[] zs, int count)
+	{
+		for (int i = 0; i < count - 1; i++) {
+
+			if (segment(minx, miny, minz, maxx, maxy, maxz,
+						xs[i], ys[i], zs[i], xs[i+1], ys[i+1], zs[i+1]))
+				return true;
+		}
+
+		return false;
+	}
+
+	static boolean blocked(float minx, float miny, float minz,
+							float maxx, float maxy, float maxz,
+							float[] xs, float[] ys, float[] zs, int count)
+	{
+		int numSegments = count - 1;
+
+		int i = 0;
+
+		for ( ; i + BLOCK <= numSegments; i += BLOCK) {
+
+			// no early exit inside the block: the hit is checked once per block
+
+			int hits = 0;
+
+			for (int lane = 0; lane < BLOCK; lane++) {
+
+				int s = i + lane;
+
+				float tmin = 0;
+				float tmax = 1;
+
+				float t0, t1, lo, hi;
+
+				float x0 = xs[s], dx = xs[s+1] - x0;
+				t0 = (minx - x0) / dx;
+				t1 = (maxx - x0) / dx;
+				lo = Math.min(t0, t1);
+				hi = Math.max(t0, t1);
+				// a zero length component is either inside the slab forever or never
+				lo = (dx != 0) ? lo : ((x0 >= minx && x0 <= maxx) ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY);
+				hi = (dx != 0) ? hi : Float.POSITIVE_INFINITY;
+				tmin = Math.max(tmin, lo);
+				tmax = Math.min(tmax, hi);
+
+				float y0 = ys[s], dy = ys[s+1] - y0;
+				t0 = (miny - y0) / dy;
+				t1 = (maxy - y0) / dy;
+				lo = Math.min(t0, t1);
+				hi = Math.max(t0, t1);
+				lo = (dy != 0) ? lo : ((y0 >= miny && y0 <= maxy) ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY);
+				hi = (dy != 0) ? hi : Float.POSITIVE_INFINITY;
+				tmin = Math.max(tmin, lo);
+				tmax = Math.min(tmax, hi);
+
+				float z0 = zs[s], dz = zs[s+1] - z0;
+				t0 = (minz - z0) / dz;
+				t1 = (maxz - z0) / dz;
+				lo = Math.min(t0, t1);
+				hi = Math.max(t0, t1);
+				lo = (dz != 0) ? lo : ((z0 >= minz && z0 <= maxz) ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY);
+				hi = (dz != 0) ? hi : Float.POSITIVE_INFINITY;
+				tmin = Math.max(tmin, lo);
+				tmax = Math.min(tmax, hi);
+
+				hits |= (tmin <= tmax) ? 1 : 0;
+			}
+
+			if (hits != 0)
+				return true;
+		}
+
+		for ( ; i < numSegments; i++) {
+
+			if (segment(minx, miny, minz, maxx, maxy, maxz,
+						xs[i], ys[i], zs[i], xs[i+1], ys[i+1], zs[i+1]))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Slab test of one segment against a closed box.
+	 */
+	static boolean segment(float minx, float miny, float minz,
+							float maxx, float maxy, float maxz,
+							float x0, float y0, float z0,
+							float x1, float y1, float z1)
+	{
+		float tmin = 0;
+		float tmax = 1;
+
+		float d = x1 - x0;
+
+		if (d == 0) {
+			if (x0 < minx || x0 > maxx)
+				return false;
+		}
+		else {
+			float t0 = (minx - x0) / d;
+			float t1 = (maxx - x0) / d;
+			tmin = Math.max(tmin, Math.min(t0, t1));
+			tmax = Math.min(tmax, Math.max(t0, t1));
+			if (tmin > tmax)
+				return false;
+		}
+
+		d = y1 - y0;
+
+		if (d == 0) {
+			if (y0 < miny || y0 > maxy)
+				return false;
+		}
+		else {
+			float t0 = (miny - y0) / d;
+			float t1 = (maxy - y0) / d;
+			tmin = Math.max(tmin, Math.min(t0, t1));
+			tmax = Math.min(tmax, Math.max(t0, t1));
+			if (tmin > tmax)
+				return false;
+		}
+
+		d = z1 - z0;
+
+		if (d == 0) {
+			if (z0 < minz || z0 > maxz)
+				return false;
+		}
+		else {
+			float t0 = (minz - z0) / d;
+			float t1 = (maxz - z0) / d;
+			tmin = Math.max(tmin, Math.min(t0, t1));
+			tmax = Math.min(tmax, Math.max(t0, t1));
+			if (tmin > tmax)
+				return false;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,498 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits the work on a .tck file into shards (ranges of tracks) and runs each shard
+ * in its own worker JVM (see ShardWorker) so that no one process needs the heap for
+ * the whole job. The workers write their partial results to memory mapped files in
+ * a work directory and the coordinator merges them: ROI hit lists are joined, density
+ * maps and connectome matrices are added up. Everything runs on the local machine.
+ *
+ * Shards hold about the same number of points. Run the coordinator on a file written
+ * by SpatialReorder to make every shard a compact spatial block; toOriginal() maps
+ * track numbers back through the reorder's permutation.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class ShardCoordinator {
+
+	private final String tckFilename;
+
+	private final File workDir;
+
+	private final int maxProcesses;
+
+	private final int threadsPerWorker;
+
+	private final long[] bounds;
+
+	// the saved track index the workers each read their own slice of
+
+	private final File indexFile;
+
+	private final List<String> jvmOptions = new ArrayList<>();
+
+	/**
+	 * Split a .tck file into numShards shards. At most maxProcesses workers run at once,
+	 * each using threadsPerWorker threads. The track index of the file is built here if
+	 * needed so the workers can all share its sidecar. Several coordinators may share a
+	 * work directory: every run names its files with a prefix of its own.
+	 */
+	public ShardCoordinator(String tckFilename, File workDir, int numShards, int maxProcesses, int threadsPerWorker)
+		throws IOException
+	{
+		if (numShards < 1 || maxProcesses < 1 || threadsPerWorker < 1)
+			throw new IllegalArgumentException("shard, process and thread counts must be positive");
+
+		if (!workDir.isDirectory() && !workDir.mkdirs())
+			throw new IOException("can not create work directory " + workDir);
+
+		this.tckFilename = new File(tckFilename).getAbsolutePath();
+		this.workDir = workDir;
+		this.maxProcesses = maxProcesses;
+		this.threadsPerWorker = threadsPerWorker;
+
+		TckIndex index = MappedTckFile.open(tckFilename).index();
+
+		bounds = split(index, numShards);
+
+		File sidecar = TckIndex.sidecarFor(new File(this.tckFilename));
+
+		// the sidecar is only missing if it could not be saved next to the .tck file
+
+		if (TckIndex.loadRange(sidecar, new File(this.tckFilename), 0, 0) != null) {
+
+			indexFile = sidecar;
+		}
+		else {
+
+			indexFile = File.createTempFile("index", ".idx", workDir);
+
+			indexFile.deleteOnExit();
+
+			index.save(indexFile, new File(this.tckFilename));
+		}
+	}
+
+	// shard s is tracks bounds[s] to bounds[s+1]-1: cut where the running point count
+	// passes each equal share of the total
+
+	private static long[] split(TckIndex index, int numShards) {
+
+		long numTracks = index.numTracks();
+
+		long totalPoints = 0;
+
+		for (long t = 0; t < numTracks; t++) {
+			totalPoints += index.pointCount(t);
+		}
+
+		long[] bounds = new long[numShards + 1];
+
+		long points = 0;
+
+		long t = 0;
+
+		for (int s = 1; s < numShards; s++) {
+
+			long target = totalPoints * s / numShards;
+
+			while (t < numTracks && points < target) {
+				points += index.pointCount(t);
+				t++;
+			}
+
+			bounds[s] = t;
+		}
+
+		bounds[numShards] = numTracks;
+
+		return bounds;
+	}
+
+	/**
+	 * Options for the worker JVMs, for instance "-Xmx4g".
+	 */
+	public void addJvmOption(String option) {
+
+		jvmOptions.add(option);
+	}
+
+	public int numShards() {
+
+		return bounds.length - 1;
+	}
+
+	public long firstTrack(int shard) {
+
+		return bounds[shard];
+	}
+
+	public long endTrack(int shard) {
+
+		return bounds[shard + 1];
+	}
+
+	/**
+	 * The numbers of the tracks passing through a box, in increasing order.
+	 */
+	public long[] boxHits(float minx, float miny, float minz, float maxx, float maxy, float maxz)
+		throws IOException, InterruptedException
+	{
+		return hits("box", str(minx), str(miny), str(minz), str(maxx), str(maxy), str(maxz));
+	}
+
+	/**
+	 * The numbers of the tracks passing through a sphere, in increasing order.
+	 */
+	public long[] sphereHits(float cx, float cy, float cz, float radius)
+		throws IOException, InterruptedException
+	{
+		return hits("sphere", str(cx), str(cy), str(cz), str(radius));
+	}
+
+	private long[] hits(String... region) throws IOException, InterruptedException {
+
+		Run run = runShards("roi", region);
+
+		try {
+
+			long[][] parts = new long[run.results.size()][];
+
+			int total = 0;
+
+			for (int s = 0; s < parts.length; s++) {
+
+				LongBuffer in = ShardWorker.open(run.results.get(s), ShardWorker.ROI).asLongBuffer();
+
+				parts[s] = new long[in.remaining()];
+
+				in.get(parts[s]);
+
+				total += parts[s].length;
+			}
+
+			// shards are in track order so joining them keeps the hits sorted
+
+			long[] hits = new long[total];
+
+			int pos = 0;
+
+			for (long[] part : parts) {
+
+				System.arraycopy(part, 0, hits, pos, part.length);
+
+				pos += part.length;
+			}
+
+			return hits;
+
+		} finally {
+
+			run.delete();
+		}
+	}
+
+	/**
+	 * The track density image of the whole file on a grid (see TrackDensityMap).
+	 */
+	public int[] densityMap(VoxelGrid grid) throws IOException, InterruptedException {
+
+		if (grid.numVoxels() > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("grid too large");
+
+		Run run = runShards("tdi", gridArgs(grid));
+
+		try {
+
+			int[] total = new int[(int) grid.numVoxels()];
+
+			for (File result : run.results) {
+
+				IntBuffer in = ShardWorker.open(result, ShardWorker.TDI).asIntBuffer();
+
+				for (int v = 0; v < total.length; v++) {
+					total[v] += in.get(v);
+				}
+			}
+
+			return total;
+
+		} finally {
+
+			run.delete();
+		}
+	}
+
+	/**
+	 * The structural connectome of the whole file: entry a*numLabels+b counts the tracks
+	 * with one end in label a and the other in label b (the matrix is symmetric). labels
+	 * holds a label per voxel of the grid; 0 is background.
+	 */
+	public long[] connectome(VoxelGrid grid, int[] labels, int numLabels) throws IOException, InterruptedException {
+
+		if (labels.length != grid.numVoxels())
+			throw new IllegalArgumentException("labels do not match the grid");
+
+		if ((long) numLabels * numLabels > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("too many labels");
+
+		// the workers share the label volume through a mapped file
+
+		File labelFile = File.createTempFile("labels", ".shard", workDir);
+
+		Run run = null;
+
+		try {
+
+			RandomAccessFile raf = new RandomAccessFile(labelFile, "rw");
+
+			try {
+
+				MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 4L * labels.length);
+
+				out.asIntBuffer().put(labels);
+
+				out.force();
+
+			} finally {
+
+				raf.close();
+			}
+
+			String[] args = new String[11];
+
+			args[0] = labelFile.getAbsolutePath();
+
+			args[1] = Integer.toString(numLabels);
+
+			System.arraycopy(gridArgs(grid), 0, args, 2, 9);
+
+			run = runShards("connectome", args);
+
+			long[] total = new long[numLabels * numLabels];
+
+			for (File result : run.results) {
+
+				LongBuffer in = ShardWorker.open(result, ShardWorker.CONNECTOME).asLongBuffer();
+
+				for (int i = 0; i < total.length; i++) {
+					total[i] += in.get(i);
+				}
+			}
+
+			return total;
+
+		} finally {
+
+			if (run != null)
+				run.delete();
+
+			labelFile.delete();
+		}
+	}
+
+	/**
+	 * Map track numbers of a reordered file back to the original file's numbers using
+	 * the permutation SpatialReorder wrote. The result is sorted.
+	 */
+	public static long[] toOriginal(long[] tracks, long[] permutation) {
+
+		long[] original = new long[tracks.length];
+
+		for (int i = 0; i < tracks.length; i++) {
+			original[i] = permutation[(int) tracks[i]];
+		}
+
+		Arrays.sort(original);
+
+		return original;
+	}
+
+	// the result files of one run of the workers, in shard order. the marker file holds
+	// the run's prefix in the work directory until the results are deleted, so runs
+	// sharing the directory never write to each other's files.
+
+	private static class Run {
+
+		final File marker;
+
+		final List<File> results = new ArrayList<>();
+
+		Run(File marker) {
+
+			this.marker = marker;
+		}
+
+		void delete() {
+
+			ShardCoordinator.delete(results);
+
+			marker.delete();
+		}
+	}
+
+	// run one worker per shard, at most maxProcesses at a time. a failed worker stops
+	// the rest.
+
+	private Run runShards(String job, String... jobArgs) throws IOException, InterruptedException {
+
+		int numShards = numShards();
+
+		Run run = new Run(File.createTempFile("run", ".shards", workDir));
+
+		String name = run.marker.getName();
+
+		String prefix = name.substring(0, name.length() - ".shards".length());
+
+		List<File> results = run.results;
+
+		List<File> logs = new ArrayList<>();
+
+		for (int s = 0; s < numShards; s++) {
+			results.add(new File(workDir, prefix + "-shard-" + s + "." + job));
+			logs.add(new File(workDir, prefix + "-shard-" + s + ".log"));
+		}
+
+		Process[] processes = new Process[numShards];
+
+		boolean ok = false;
+
+		try {
+
+			int started = 0;
+
+			for (int s = 0; s < numShards; s++) {
+
+				while (started < numShards && started < s + maxProcesses) {
+
+					processes[started] = start(started, results.get(started), logs.get(started), job, jobArgs);
+
+					started++;
+				}
+
+				int exitCode = processes[s].waitFor();
+
+				if (exitCode != 0)
+					throw new IOException("shard " + s + " failed with exit code " + exitCode + ": " + lastLine(logs.get(s)));
+			}
+
+			ok = true;
+
+			return run;
+
+		} finally {
+
+			for (Process process : processes) {
+				if (process != null)
+					process.destroy();
+			}
+
+			if (!ok)
+				run.delete();
+
+			delete(logs);
+		}
+	}
+
+	private Process start(int shard, File result, File log, String job, String... jobArgs) throws IOException {
+
+		List<String> command = new ArrayList<>();
+
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+
+		command.addAll(jvmOptions);
+
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+
+		command.add(ShardWorker.class.getName());
+
+		command.add(tckFilename);
+		command.add(indexFile.getAbsolutePath());
+		command.add(Long.toString(firstTrack(shard)));
+		command.add(Long.toString(endTrack(shard)));
+		command.add(Integer.toString(threadsPerWorker));
+		command.add(result.getAbsolutePath());
+		command.add(job);
+		command.addAll(Arrays.asList(jobArgs));
+
+		ProcessBuilder builder = new ProcessBuilder(command);
+
+		builder.redirectErrorStream(true);
+
+		builder.redirectOutput(log);
+
+		return builder.start();
+	}
+
+	private static String[] gridArgs(VoxelGrid grid) {
+
+		return new String[] {
+				Integer.toString(grid.nx), Integer.toString(grid.ny), Integer.toString(grid.nz),
+				str(grid.sx), str(grid.sy), str(grid.sz),
+				str(grid.ox), str(grid.oy), str(grid.oz)};
+	}
+
+	// Float.toString round trips exactly through Float.parseFloat
+
+	private static String str(float value) {
+
+		return Float.toString(value);
+	}
+
+	private static String lastLine(File log) {
+
+		String last = "(no output)";
+
+		try {
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log), StandardCharsets.UTF_8));
+
+			try {
+
+				String line;
+
+				while ((line = reader.readLine()) != null) {
+					if (line.trim().length() > 0 && !line.startsWith("\tat "))
+						last = line;
+				}
+
+			} finally {
+
+				reader.close();
+			}
+
+		} catch (IOException e) {
+
+			// the log is only for the message
+		}
+
+		return last;
+	}
+
+	private static void delete(List<File> files) {
+
+		for (File file : files) {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,324 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The worker process of a ShardCoordinator. It handles one shard (a range of tracks)
+ * of a .tck file and writes its partial result to a memory mapped result file for
+ * the coordinator to merge. It reads only its shard's slice of the track index and
+ * maps only the part of the file holding its tracks. Run by the coordinator as:
+ *
+ *   java -cp ... trackcode.ShardWorker tckFile indexFile firstTrack endTrack threads resultFile job args...
+ *
+ * where job and args are one of
+ *
+ *   roi box minx miny minz maxx maxy maxz
+ *   roi sphere cx cy cz radius
+ *   tdi nx ny nz sx sy sz ox oy oz
+ *   connectome labelFile numLabels nx ny nz sx sy sz ox oy oz
+ *
+ * Result file layout (big endian): magic, version, job kind, value count, then the
+ * values: track numbers as longs for roi, voxel counts as ints for tdi and a
+ * numLabels by numLabels matrix of longs for connectome. The label file of a
+ * connectome job holds one int per voxel (big endian, grid order).
+ *
+ * The exit code is 0 on success and 1 on any failure (described on stderr).
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class ShardWorker {
+
+	static final int MAGIC = 0x54534852;  // "TSHR"
+
+	static final int VERSION = 1;
+
+	static final int HEADER_BYTES = 4 + 4 + 4 + 8;
+
+	static final int ROI = 1;
+	static final int TDI = 2;
+	static final int CONNECTOME = 3;
+
+	private ShardWorker() { }
+
+	public static void main(String[] args) {
+
+		try {
+
+			run(args);
+
+		} catch (Throwable e) {
+
+			e.printStackTrace();
+
+			System.exit(1);
+		}
+
+		System.exit(0);
+	}
+
+	static void run(String[] args) throws IOException {
+
+		if (args.length < 7)
+			throw new IllegalArgumentException("usage: tckFile indexFile firstTrack endTrack threads resultFile job args...");
+
+		long first = Long.parseLong(args[2]);
+
+		long end = Long.parseLong(args[3]);
+
+		int threads = Integer.parseInt(args[4]);
+
+		File result = new File(args[5]);
+
+		String job = args[6];
+
+		// the shard's tracks numbered from 0
+
+		TrackSource shard = MappedTckFile.openRange(args[0], new File(args[1]), first, end);
+
+		if (job.equals("roi")) {
+
+			long[] hits = RoiQuery.search(shard, region(args, 7), threads);
+
+			MappedByteBuffer out = create(result, ROI, hits.length, 8L * hits.length);
+
+			for (long hit : hits) {
+				out.putLong(first + hit);
+			}
+
+			out.force();
+		}
+		else if (job.equals("tdi")) {
+
+			int[] counts = densityMap(shard, grid(args, 7), threads);
+
+			MappedByteBuffer out = create(result, TDI, counts.length, 4L * counts.length);
+
+			out.asIntBuffer().put(counts);
+
+			out.force();
+		}
+		else if (job.equals("connectome")) {
+
+			File labelFile = new File(args[7]);
+
+			int numLabels = Integer.parseInt(args[8]);
+
+			long[] matrix = connectome(shard, labelFile, numLabels, grid(args, 9), threads);
+
+			MappedByteBuffer out = create(result, CONNECTOME, matrix.length, 8L * matrix.length);
+
+			out.asLongBuffer().put(matrix);
+
+			out.force();
+		}
+		else {
+
+			throw new IllegalArgumentException("unknown shard job " + job);
+		}
+	}
+
+	private static Roi region(String[] args, int i) {
+
+		String shape = args[i];
+
+		if (shape.equals("box"))
+			return Roi.box(f(args, i+1), f(args, i+2), f(args, i+3), f(args, i+4), f(args, i+5), f(args, i+6));
+
+		if (shape.equals("sphere"))
+			return Roi.sphere(f(args, i+1), f(args, i+2), f(args, i+3), f(args, i+4));
+
+		throw new IllegalArgumentException("unknown region shape " + shape);
+	}
+
+	private static VoxelGrid grid(String[] args, int i) {
+
+		return new VoxelGrid(Integer.parseInt(args[i]), Integer.parseInt(args[i+1]), Integer.parseInt(args[i+2]),
+								f(args, i+3), f(args, i+4), f(args, i+5),
+								f(args, i+6), f(args, i+7), f(args, i+8));
+	}
+
+	private static float f(String[] args, int i) {
+
+		return Float.parseFloat(args[i]);
+	}
+
+	private static int[] densityMap(final TrackSource source, VoxelGrid grid, int threads) {
+
+		final TrackDensityMap[] maps = new TrackDensityMap[Math.max(1, threads)];
+
+		for (int w = 0; w < maps.length; w++) {
+			maps[w] = new TrackDensityMap(grid);
+		}
+
+		Parallel.forRange(source.numTracks(), maps.length, new Parallel.RangeBody() {
+
+			@Override
+			public void run(int worker, long from, long to) {
+
+				TrackCoords coords = new TrackCoords();
+
+				for (long t = from; t < to; t++) {
+
+					source.read(t, coords);
+
+					maps[worker].add(coords);
+				}
+			}
+		});
+
+		int[] total = maps[0].counts();
+
+		for (int w = 1; w < maps.length; w++) {
+
+			int[] counts = maps[w].counts();
+
+			for (int v = 0; v < total.length; v++) {
+				total[v] += counts[v];
+			}
+		}
+
+		return total;
+	}
+
+	// how many tracks join each pair of labels: the labels under a track's two end points.
+	// label 0 is background and does not count.
+
+	private static long[] connectome(final TrackSource source, File labelFile, final int numLabels, final VoxelGrid grid, int threads)
+		throws IOException
+	{
+		final IntBuffer labels;
+
+		RandomAccessFile raf = new RandomAccessFile(labelFile, "r");
+
+		try {
+
+			if (raf.length() != 4 * grid.numVoxels())
+				throw new IOException("label file " + labelFile + " does not match the grid");
+
+			labels = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()).asIntBuffer();
+
+		} finally {
+
+			raf.close();
+		}
+
+		final long[][] matrices = new long[Math.max(1, threads)][];
+
+		Parallel.forRange(source.numTracks(), matrices.length, new Parallel.RangeBody() {
+
+			@Override
+			public void run(int worker, long from, long to) {
+
+				if (matrices[worker] == null)
+					matrices[worker] = new long[numLabels * numLabels];
+
+				long[] matrix = matrices[worker];
+
+				TrackCoords coords = new TrackCoords();
+
+				for (long t = from; t < to; t++) {
+
+					source.read(t, coords);
+
+					int n = coords.count();
+
+					if (n == 0)
+						continue;
+
+					int a = label(labels, grid, coords.xs[0], coords.ys[0], coords.zs[0]);
+					int b = label(labels, grid, coords.xs[n-1], coords.ys[n-1], coords.zs[n-1]);
+
+					if (a <= 0 || b <= 0 || a >= numLabels || b >= numLabels)
+						continue;
+
+					matrix[a * numLabels + b]++;
+
+					if (a != b)
+						matrix[b * numLabels + a]++;
+				}
+			}
+		});
+
+		long[] total = new long[numLabels * numLabels];
+
+		for (long[] matrix : matrices) {
+
+			if (matrix == null)
+				continue;
+
+			for (int i = 0; i < total.length; i++) {
+				total[i] += matrix[i];
+			}
+		}
+
+		return total;
+	}
+
+	private static int label(IntBuffer labels, VoxelGrid grid, float x, float y, float z) {
+
+		long v = grid.voxel(x, y, z);
+
+		return (v < 0) ? 0 : labels.get((int) v);
+	}
+
+	private static MappedByteBuffer create(File file, int kind, long count, long payloadBytes) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+
+			raf.setLength(0);
+
+			MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + payloadBytes);
+
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(kind);
+			out.putLong(count);
+
+			return out;
+
+		} finally {
+
+			raf.close();
+		}
+	}
+
+	/**
+	 * Map a result file for reading, positioned at its first value.
+	 */
+	static MappedByteBuffer open(File file, int kind) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+
+			MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+			if (raf.length() < HEADER_BYTES || in.getInt() != MAGIC || in.getInt() != VERSION || in.getInt() != kind)
+				throw new IOException("not a shard result of the expected kind: " + file);
+
+			long count = in.getLong();
+
+			int valueBytes = (kind == TDI) ? 4 : 8;
+
+			if (raf.length() != HEADER_BYTES + count * valueBytes)
+				throw new IOException("shard result has the wrong length: " + file);
+
+			return in;
+
+		} finally {
+
+			raf.close();
+		}
+	}
+}
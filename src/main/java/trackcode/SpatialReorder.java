@@ -0,0 +1,419 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Rewrites a tractogram with its tracks in spatial order so tracks that are near each
+ * other in space are also near each other in the file. Region queries, caches and
+ * indexes then touch contiguous runs of the file instead of jumping around.
+ *
+ * Each track gets a Morton (z-order) key from its midpoint or the center of its
+ * bounds, quantized to 1024 cells per axis over the extent of the whole tractogram.
+ * The 30 bit key and the 33 bit track number are packed into one long so sorting the
+ * longs sorts by key and then by original order. The longs are sorted in runs of a
+ * bounded size which are spilled to temporary files and then merged, so memory use
+ * does not depend on the number of tracks.
+ *
+ * Besides the reordered .tck file a permutation file is written (see permutationFor):
+ * entry i is the original number of track i of the new file. Layout (big endian):
+ * magic, version, number of tracks, then the original track numbers as longs.
+ * Empty tracks cannot be stored in a .tck file and are dropped.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class SpatialReorder {
+
+	public enum Key {MIDPOINT, BOUNDS_CENTER}
+
+	public static final int DEFAULT_RUN_SIZE = 1 << 22;
+
+	private static final int MAGIC = 0x5450524d;  // "TPRM"
+
+	private static final int VERSION = 1;
+
+	private static final int BITS_PER_AXIS = 10;
+
+	private static final int TRACK_BITS = 33;
+
+	private static final long TRACK_MASK = (1L << TRACK_BITS) - 1;
+
+	private SpatialReorder() { }
+
+	public static File permutationFor(File tckFile) {
+
+		return new File(tckFile.getPath() + ".perm");
+	}
+
+	/**
+	 * Reorder a .tck file into a new one, writing its permutation file alongside.
+	 * Returns the number of tracks written.
+	 */
+	public static long reorder(String inFilename, String outFilename, Key key, int runSize, int threads)
+		throws IOException
+	{
+		MappedTckFile in = MappedTckFile.open(inFilename);
+
+		return reorder(in, outFilename, key, runSize, threads, null);
+	}
+
+	/**
+	 * Write the tracks of a source to a new .tck file in spatial order along with its
+	 * permutation file. Sorted runs of at most runSize tracks are spilled to tempDir
+	 * (null for the system's temporary directory).
+	 * Returns the number of tracks written.
+	 */
+	public static long reorder(final TrackSource source, String outFilename, final Key key, int runSize, int threads, File tempDir)
+		throws IOException
+	{
+		if (source.numTracks() > TRACK_MASK)
+			throw new IllegalArgumentException("too many tracks to reorder");
+
+		if (runSize < 1)
+			throw new IllegalArgumentException("run size must be positive");
+
+		final float[] extent = extent(source, key, threads);
+
+		List<File> runs = new ArrayList<>();
+
+		try {
+
+			final long[] keys = new long[(int) Math.min(runSize, Math.max(1, source.numTracks()))];
+
+			for (long first = 0; first < source.numTracks(); first += keys.length) {
+
+				final long start = first;
+
+				final int n = (int) Math.min(keys.length, source.numTracks() - first);
+
+				Parallel.forRange(n, threads, new Parallel.RangeBody() {
+
+					@Override
+					public void run(int worker, long from, long to) {
+
+						TrackCoords coords = new TrackCoords();
+
+						float[] point = new float[3];
+
+						float[] bounds = new float[6];
+
+						for (long i = from; i < to; i++) {
+
+							source.read(start + i, coords);
+
+							keyPoint(coords, key, point, bounds);
+
+							keys[(int) i] = (morton(point, extent) << TRACK_BITS) | (start + i);
+						}
+					}
+				});
+
+				Arrays.parallelSort(keys, 0, n);
+
+				runs.add(spill(keys, n, tempDir));
+			}
+
+			return write(source, runs, outFilename);
+
+		} finally {
+
+			for (File run : runs) {
+				run.delete();
+			}
+		}
+	}
+
+	/**
+	 * Read a permutation file: entry i is the original number of reordered track i.
+	 */
+	public static long[] readPermutation(File file) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+
+		try {
+
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("not a permutation file: " + file);
+
+			long count = in.readLong();
+
+			if (count > Integer.MAX_VALUE - 8)
+				throw new IOException("permutation too large to load: " + file);
+
+			long[] permutation = new long[(int) count];
+
+			for (int i = 0; i < permutation.length; i++) {
+				permutation[i] = in.readLong();
+			}
+
+			return permutation;
+
+		} finally {
+
+			in.close();
+		}
+	}
+
+	// the bounds of the key points of all tracks, gathered per worker
+
+	private static float[] extent(final TrackSource source, final Key key, int threads) {
+
+		final int workers = Math.max(1, threads);
+
+		final float[][] partial = new float[workers][];
+
+		for (int w = 0; w < workers; w++) {
+			partial[w] = new float[] {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+										Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		}
+
+		Parallel.forRange(source.numTracks(), workers, new Parallel.RangeBody() {
+
+			@Override
+			public void run(int worker, long from, long to) {
+
+				TrackCoords coords = new TrackCoords();
+
+				float[] point = new float[3];
+
+				float[] bounds = new float[6];
+
+				float[] b = partial[worker];
+
+				for (long t = from; t < to; t++) {
+
+					source.read(t, coords);
+
+					if (!keyPoint(coords, key, point, bounds))
+						continue;
+
+					for (int i = 0; i < 3; i++) {
+						b[i] = Math.min(b[i], point[i]);
+						b[i+3] = Math.max(b[i+3], point[i]);
+					}
+				}
+			}
+		});
+
+		float[] extent = partial[0];
+
+		for (int w = 1; w < workers; w++) {
+			for (int i = 0; i < 3; i++) {
+				extent[i] = Math.min(extent[i], partial[w][i]);
+				extent[i+3] = Math.max(extent[i+3], partial[w][i+3]);
+			}
+		}
+
+		return extent;
+	}
+
+	// returns false for an empty track
+
+	private static boolean keyPoint(TrackCoords coords, Key key, float[] point, float[] b) {
+
+		int count = coords.count();
+
+		if (count == 0) {
+			point[0] = point[1] = point[2] = 0;
+			return false;
+		}
+
+		if (key == Key.MIDPOINT) {
+
+			int mid = count / 2;
+
+			point[0] = coords.xs[mid];
+			point[1] = coords.ys[mid];
+			point[2] = coords.zs[mid];
+		}
+		else {
+
+			TrackGeometry.bounds(coords, b);
+
+			point[0] = (b[0] + b[3]) / 2;
+			point[1] = (b[1] + b[4]) / 2;
+			point[2] = (b[2] + b[5]) / 2;
+		}
+
+		return true;
+	}
+
+	static long morton(float[] point, float[] extent) {
+
+		long key = 0;
+
+		int cells = 1 << BITS_PER_AXIS;
+
+		for (int axis = 0; axis < 3; axis++) {
+
+			float size = extent[axis+3] - extent[axis];
+
+			int cell = (size > 0) ? (int) ((point[axis] - extent[axis]) / size * cells) : 0;
+
+			cell = Math.max(0, Math.min(cells - 1, cell));
+
+			// spread the bits of cell so they land every third bit
+
+			long spread = 0;
+
+			for (int bit = 0; bit < BITS_PER_AXIS; bit++) {
+				spread |= ((long) ((cell >>> bit) & 1)) << (3 * bit);
+			}
+
+			key |= spread << axis;
+		}
+
+		return key;
+	}
+
+	private static File spill(long[] keys, int n, File tempDir) throws IOException {
+
+		File run = File.createTempFile("trackrun", ".tmp", tempDir);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+
+		try {
+
+			for (int i = 0; i < n; i++) {
+				out.writeLong(keys[i]);
+			}
+
+		} finally {
+
+			out.close();
+		}
+
+		return run;
+	}
+
+	// one sorted run being merged
+
+	private static class RunReader implements Comparable<RunReader> {
+
+		final DataInputStream in;
+
+		long current;
+
+		RunReader(File run) throws IOException {
+
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+		}
+
+		boolean advance() throws IOException {
+
+			try {
+
+				current = in.readLong();
+
+				return true;
+
+			} catch (EOFException e) {
+
+				return false;
+			}
+		}
+
+		@Override
+		public int compareTo(RunReader other) {
+
+			return Long.compare(current, other.current);
+		}
+	}
+
+	// merge the runs and copy the tracks in merged order
+
+	private static long write(TrackSource source, List<File> runs, String outFilename) throws IOException {
+
+		PriorityQueue<RunReader> queue = new PriorityQueue<>();
+
+		List<RunReader> readers = new ArrayList<>();
+
+		File permutationFile = permutationFor(new File(outFilename));
+
+		TckWriter writer = new TckWriter(outFilename);
+
+		DataOutputStream permutation = null;
+
+		try {
+
+			permutation = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(permutationFile), 1 << 16));
+
+			permutation.writeInt(MAGIC);
+			permutation.writeInt(VERSION);
+			permutation.writeLong(0);  // filled in at the end
+
+			for (File run : runs) {
+
+				RunReader reader = new RunReader(run);
+
+				readers.add(reader);
+
+				if (reader.advance())
+					queue.add(reader);
+			}
+
+			TrackCoords coords = new TrackCoords();
+
+			while (!queue.isEmpty()) {
+
+				RunReader reader = queue.poll();
+
+				long track = reader.current & TRACK_MASK;
+
+				source.read(track, coords);
+
+				if (coords.count() > 0) {
+
+					writer.write(coords);
+
+					permutation.writeLong(track);
+				}
+
+				if (reader.advance())
+					queue.add(reader);
+			}
+
+		} finally {
+
+			for (RunReader reader : readers) {
+				reader.in.close();
+			}
+
+			if (permutation != null)
+				permutation.close();
+
+			writer.close();
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(permutationFile, "rw");
+
+		try {
+
+			raf.seek(8);
+
+			raf.writeLong(writer.count());
+
+		} finally {
+
+			raf.close();
+		}
+
+		return writer.count();
+	}
+}
@@ -0,0 +1,84 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps an in memory copy of a .tck file that is still being written, along with a
+ * spatial index of its tracks and any live statistics (for instance a TrackStats or
+ * a TrackDensityMap). Each update() reads only the newly appended tracks and adds
+ * them to the store, the index and the statistics.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TckFollower {
+
+	private final TckTailReader reader;
+
+	private final TrackColumns columns = new TrackColumns();
+
+	private final TrackGridIndex index;
+
+	private final List<TrackVisitor> listeners = new ArrayList<>();
+
+	public TckFollower(String filename, float indexCellSize) {
+
+		reader = new TckTailReader(filename);
+
+		index = new TrackGridIndex(indexCellSize);
+	}
+
+	/**
+	 * Also show every new track to a visitor. Add listeners before the first update.
+	 */
+	public void addListener(TrackVisitor listener) {
+
+		listeners.add(listener);
+	}
+
+	/**
+	 * Pick up tracks appended since the last update. Returns the number of new tracks.
+	 */
+	public int update() throws IOException {
+
+		return reader.poll(new TrackVisitor() {
+
+			@Override
+			public void visit(long track, TrackCoords coords) {
+
+				long t = columns.append(coords);
+
+				index.add(t, coords);
+
+				for (TrackVisitor listener : listeners) {
+					listener.visit(t, coords);
+				}
+			}
+		});
+	}
+
+	public long trackCount() {
+
+		return columns.numTracks();
+	}
+
+	public TrackColumns tracks() {
+
+		return columns;
+	}
+
+	public TrackGridIndex index() {
+
+		return index;
+	}
+
+	public TckTailReader reader() {
+
+		return reader;
+	}
+}
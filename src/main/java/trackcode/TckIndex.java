@@ -0,0 +1,266 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The position (in x,y,z triplets from the start of the data section) and the
+ * point count of every track in a .tck file. It is built with one scan of the
+ * file and saved in a sidecar file named like the .tck file plus ".idx".
+ *
+ * Sidecar layout (big endian): magic, version, source file length, source file
+ * modification time, number of tracks, then all the track start positions as
+ * longs followed by all the point counts as ints.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TckIndex {
+
+	private static final int MAGIC = 0x54434b49;  // "TCKI"
+
+	// version 1 point numbers were counted from the old guessed data start rather
+	// than the header's file offset, so those sidecars are rebuilt
+
+	private static final int VERSION = 2;
+
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8;
+
+	private final long[] firstPoints;
+
+	private final int[] counts;
+
+	private TckIndex(long[] firstPoints, int[] counts) {
+
+		this.firstPoints = firstPoints;
+		this.counts = counts;
+	}
+
+	public long numTracks() {
+
+		return counts.length;
+	}
+
+	public long firstPoint(long track) {
+
+		return firstPoints[(int) track];
+	}
+
+	public int pointCount(long track) {
+
+		return counts[(int) track];
+	}
+
+	public static File sidecarFor(File tckFile) {
+
+		return new File(tckFile.getPath() + ".idx");
+	}
+
+	static TckIndex loadOrBuild(MappedTckFile tckFile) throws IOException {
+
+		File sidecar = sidecarFor(tckFile.file());
+
+		TckIndex index = load(sidecar, tckFile.file());
+
+		if (index != null)
+			return index;
+
+		index = build(tckFile);
+
+		try {
+
+			index.save(sidecar, tckFile.file());
+
+		} catch (IOException e) {
+
+			// a read only directory should not stop us from using the file
+
+			System.err.println("could not save track index " + sidecar + ": " + e.getMessage());
+		}
+
+		return index;
+	}
+
+	/**
+	 * Scan the data section of a mapped .tck file once and record where every track starts.
+	 */
+	public static TckIndex build(MappedTckFile tckFile) {
+
+		long[] firstPoints = new long[1024];
+
+		int[] counts = new int[1024];
+
+		int numTracks = 0;
+
+		long numPoints = tckFile.numPoints();
+
+		long trackStart = 0;
+
+		for (long pt = 0; pt < numPoints; pt++) {
+
+			float x = tckFile.coord(pt, 0);
+			float y = tckFile.coord(pt, 1);
+			float z = tckFile.coord(pt, 2);
+
+			if (Float.isInfinite(x) && Float.isInfinite(y) && Float.isInfinite(z))
+				break;
+
+			if (Float.isNaN(x) && Float.isNaN(y) && Float.isNaN(z)) {
+
+				long thisTrackSize = pt - trackStart;
+
+				if (thisTrackSize > 0) {
+
+					if (numTracks == counts.length) {
+
+						firstPoints = Arrays.copyOf(firstPoints, numTracks * 2);
+
+						counts = Arrays.copyOf(counts, numTracks * 2);
+					}
+
+					firstPoints[numTracks] = trackStart;
+
+					counts[numTracks] = (int) thisTrackSize;
+
+					numTracks++;
+				}
+
+				trackStart = pt + 1;
+			}
+		}
+
+		return new TckIndex(Arrays.copyOf(firstPoints, numTracks), Arrays.copyOf(counts, numTracks));
+	}
+
+	public void save(File sidecar, File tckFile) throws IOException {
+
+		DataOutputStream out =
+				new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar), 1 << 16));
+
+		try {
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(tckFile.length());
+			out.writeLong(tckFile.lastModified());
+			out.writeLong(counts.length);
+
+			for (int i = 0; i < firstPoints.length; i++) {
+				out.writeLong(firstPoints[i]);
+			}
+
+			for (int i = 0; i < counts.length; i++) {
+				out.writeInt(counts[i]);
+			}
+
+		} finally {
+
+			out.close();
+		}
+	}
+
+	/**
+	 * Load a sidecar index. Returns null if there is no sidecar or if it does not match
+	 * the current length and modification time of the .tck file.
+	 */
+	public static TckIndex load(File sidecar, File tckFile) throws IOException {
+
+		if (!sidecar.exists() || sidecar.length() < HEADER_BYTES)
+			return null;
+
+		RandomAccessFile raf = new RandomAccessFile(sidecar, "r");
+
+		try {
+
+			FileChannel channel = raf.getChannel();
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				return null;
+
+			if (buffer.getLong() != tckFile.length() || buffer.getLong() != tckFile.lastModified())
+				return null;
+
+			long numTracks = buffer.getLong();
+
+			if (buffer.remaining() != numTracks * 12)
+				return null;
+
+			long[] firstPoints = new long[(int) numTracks];
+
+			int[] counts = new int[(int) numTracks];
+
+			buffer.asLongBuffer().get(firstPoints);
+
+			buffer.position(buffer.position() + firstPoints.length * 8);
+
+			buffer.asIntBuffer().get(counts);
+
+			return new TckIndex(firstPoints, counts);
+
+		} finally {
+
+			raf.close();
+		}
+	}
+
+	/**
+	 * Load the entries of tracks first to end-1 of a sidecar index, renumbered from 0,
+	 * without reading the rest of it. Returns null like load() does.
+	 */
+	public static TckIndex loadRange(File sidecar, File tckFile, long first, long end) throws IOException {
+
+		if (!sidecar.exists() || sidecar.length() < HEADER_BYTES)
+			return null;
+
+		RandomAccessFile raf = new RandomAccessFile(sidecar, "r");
+
+		try {
+
+			FileChannel channel = raf.getChannel();
+
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+				return null;
+
+			if (header.getLong() != tckFile.length() || header.getLong() != tckFile.lastModified())
+				return null;
+
+			long numTracks = header.getLong();
+
+			if (channel.size() != HEADER_BYTES + numTracks * 12)
+				return null;
+
+			if (first < 0 || end < first || end > numTracks)
+				throw new IllegalArgumentException("bad track range " + first + " to " + end);
+
+			int n = (int) (end - first);
+
+			long[] firstPoints = new long[n];
+
+			int[] counts = new int[n];
+
+			channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * 8, n * 8L).asLongBuffer().get(firstPoints);
+
+			channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + numTracks * 8 + first * 4, n * 4L).asIntBuffer().get(counts);
+
+			return new TckIndex(firstPoints, counts);
+
+		} finally {
+
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,238 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import trackcode.Main.DataType;
+
+/**
+ * Follows a .tck file that is still being written (for instance by MRtrix tckgen).
+ * Each poll() reads only the bytes appended since the last poll and hands every newly
+ * completed track to a visitor. A track whose points are only partly written yet is
+ * kept and finished on a later poll, so nothing is ever read twice.
+ *
+ * MRtrix writes the end of data marker (an Inf triplet) after each batch of tracks
+ * and overwrites it with the next batch. So reaching the marker only means "no more
+ * tracks for now": the reader stays on the marker and looks again next poll. Stop
+ * polling once the writing program has finished.
+ *
+ * Like every other .tck reader, the start of the data comes from the header's
+ * "file: . offset" entry (see Main.readTckLayout).
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TckTailReader {
+
+	private static final int HEADER_LIMIT = 1 << 20;
+
+	private static final int CHUNK = 1 << 22;
+
+	private final File file;
+
+	private DataType dataType;
+
+	private int bytesPerValue;
+
+	private long position;
+
+	private final TrackCoords partial = new TrackCoords();
+
+	private long tracksRead;
+
+	private boolean atEndMarker;
+
+	public TckTailReader(String filename) {
+
+		this.file = new File(filename);
+	}
+
+	/**
+	 * The byte offset in the file where the next poll will start reading.
+	 */
+	public long position() {
+
+		return position;
+	}
+
+	public long tracksRead() {
+
+		return tracksRead;
+	}
+
+	/**
+	 * True if the last poll stopped at an end of data marker.
+	 */
+	public boolean atEndMarker() {
+
+		return atEndMarker;
+	}
+
+	/**
+	 * Read whatever has been appended since the last call and show each completed
+	 * track to the visitor. Returns the number of new tracks.
+	 */
+	public int poll(TrackVisitor visitor) throws IOException {
+
+		if (dataType == null && !readHeader())
+			return 0;
+
+		int tripletBytes = 3 * bytesPerValue;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		int newTracks = 0;
+
+		try {
+
+			long available = (raf.length() - position) / tripletBytes * tripletBytes;
+
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK / tripletBytes * tripletBytes, Math.max(tripletBytes, available)));
+
+			buffer.order((dataType == DataType.Float32LE || dataType == DataType.Float64LE) ?
+							ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+			atEndMarker = false;
+
+			while (available > 0) {
+
+				buffer.clear();
+
+				buffer.limit((int) Math.min(buffer.capacity(), available));
+
+				raf.seek(position);
+
+				raf.readFully(buffer.array(), 0, buffer.limit());
+
+				while (buffer.hasRemaining()) {
+
+					float x = next(buffer);
+					float y = next(buffer);
+					float z = next(buffer);
+
+					if (Float.isInfinite(x) && Float.isInfinite(y) && Float.isInfinite(z)) {
+
+						// stay on the marker: the writer may replace it with more tracks
+
+						atEndMarker = true;
+
+						return newTracks;
+					}
+
+					position += tripletBytes;
+
+					available -= tripletBytes;
+
+					if (Float.isNaN(x) && Float.isNaN(y) && Float.isNaN(z)) {
+
+						if (partial.count() > 0) {
+
+							visitor.visit(tracksRead, partial);
+
+							tracksRead++;
+
+							newTracks++;
+
+							partial.clear();
+						}
+					}
+					else {
+
+						partial.add(x, y, z);
+					}
+				}
+			}
+
+		} finally {
+
+			raf.close();
+		}
+
+		return newTracks;
+	}
+
+	private float next(ByteBuffer buffer) {
+
+		if (bytesPerValue == 4)
+			return buffer.getFloat();
+
+		return (float) buffer.getDouble();
+	}
+
+	// returns false if the header has not been completely written yet
+
+	private boolean readHeader() throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		byte[] bytes;
+
+		try {
+
+			bytes = new byte[(int) Math.min(HEADER_LIMIT, raf.length())];
+
+			raf.readFully(bytes);
+
+		} finally {
+
+			raf.close();
+		}
+
+		String text = new String(bytes, StandardCharsets.ISO_8859_1);
+
+		int end = -1;
+
+		int lineStart = 0;
+
+		for (int i = 0; i < text.length(); i++) {
+
+			if (text.charAt(i) != '\n')
+				continue;
+
+			String line = text.substring(lineStart, i).trim();
+
+			lineStart = i + 1;
+
+			if (line.equalsIgnoreCase("end")) {
+				end = lineStart;
+				break;
+			}
+		}
+
+		if (end < 0) {
+
+			if (bytes.length == HEADER_LIMIT)
+				throw new IOException("no end of header found in " + file);
+
+			return false;
+		}
+
+		// the same header parsing as every other .tck reader, so all agree on where the data starts
+
+		long[] dataOffset = new long[1];
+
+		DataType type = Main.readHeader(new PushbackInputStream(new ByteArrayInputStream(bytes, 0, end)), null, dataOffset);
+
+		int size = Main.numBytes(type);
+
+		if (size == 0)
+			throw new IOException("unsupported tck datatype in " + file);
+
+		dataType = type;
+
+		bytesPerValue = size;
+
+		position = (dataOffset[0] >= 0) ? dataOffset[0] : end;
+
+		return true;
+	}
+}
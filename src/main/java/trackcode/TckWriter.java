@@ -0,0 +1,149 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes tracks to a new Float32LE .tck file. The track count is not known until the
+ * file is closed so the header reserves a fixed width count field which close()
+ * fills in. Data starts immediately after the END line, which is padded so the data
+ * offset is a multiple of 4.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TckWriter implements Closeable {
+
+	private static final String COUNT_FORMAT = "%020d";
+
+	private final String filename;
+
+	private final OutputStream out;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+	private final long countPosition;
+
+	private long count;
+
+	private boolean closed;
+
+	public TckWriter(String filename) throws IOException {
+
+		this.filename = filename;
+
+		// the header length does not depend on its values because the offset and count
+		// fields have fixed widths: build it once to measure and once for real
+
+		String probe = header(0, 0);
+
+		long padding = (4 - probe.length() % 4) % 4;
+
+		String text = header(probe.length() + padding, padding);
+
+		countPosition = text.indexOf("count: ") + "count: ".length();
+
+		out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+
+		out.write(text.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static String header(long offset, long padding) {
+
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("mrtrix tracks\n");
+		sb.append("datatype: Float32LE");
+		for (int i = 0; i < padding; i++) {
+			sb.append(' ');
+		}
+		sb.append('\n');
+		sb.append("file: . ").append(String.format("%010d", offset)).append('\n');
+		sb.append("count: ").append(String.format(COUNT_FORMAT, 0)).append('\n');
+		sb.append("END\n");
+
+		return sb.toString();
+	}
+
+	public long count() {
+
+		return count;
+	}
+
+	public void write(TrackCoords track) throws IOException {
+
+		write(track.xs, track.ys, track.zs, track.count());
+	}
+
+	public void write(float[] xs, float[] ys, float[] zs, int numPoints) throws IOException {
+
+		if (numPoints == 0)
+			return;
+
+		for (int i = 0; i < numPoints; i++) {
+			put(xs[i], ys[i], zs[i]);
+		}
+
+		put(Float.NaN, Float.NaN, Float.NaN);
+
+		count++;
+	}
+
+	private void put(float x, float y, float z) throws IOException {
+
+		if (buffer.remaining() < 12)
+			flushBuffer();
+
+		buffer.putFloat(x);
+		buffer.putFloat(y);
+		buffer.putFloat(z);
+	}
+
+	private void flushBuffer() throws IOException {
+
+		out.write(buffer.array(), 0, buffer.position());
+
+		buffer.clear();
+	}
+
+	/**
+	 * Write the end of data marker and fill in the track count.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed)
+			return;
+
+		closed = true;
+
+		put(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY);
+
+		flushBuffer();
+
+		out.close();
+
+		RandomAccessFile raf = new RandomAccessFile(filename, "rw");
+
+		try {
+
+			raf.seek(countPosition);
+
+			raf.write(String.format(COUNT_FORMAT, count).getBytes(StandardCharsets.US_ASCII));
+
+		} finally {
+
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,462 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a block compressed tractogram written by TczWriter. Only the block index is
+ * kept in memory. Reading a track decompresses just its block; the last decoded
+ * block of each thread is kept so reading tracks in order costs one decompression
+ * per block. Whole file loads decompress blocks in parallel a few blocks ahead of
+ * the one being appended, and spatial searches skip every block whose bounds cannot
+ * match.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TczFile implements TrackSource {
+
+	// one decompressed block in columnar form
+
+	private static class Block {
+
+		int number = -1;
+		long firstTrack;
+		int[] starts = new int[1];
+		float[] xs = new float[0];
+		float[] ys = new float[0];
+		float[] zs = new float[0];
+	}
+
+	private final RandomAccessFile raf;
+
+	private final FileChannel channel;
+
+	private final long numTracks;
+
+	private final int numBlocks;
+
+	private final long[] positions;
+	private final int[] compressedLengths;
+	private final int[] rawLengths;
+	private final long[] firstTracks;
+	private final int[] trackCounts;
+	private final float[] bounds;
+
+	private final ThreadLocal<Block> lastBlock = new ThreadLocal<Block>() {
+
+		@Override
+		protected Block initialValue() {
+			return new Block();
+		}
+	};
+
+	public TczFile(String filename) throws IOException {
+
+		raf = new RandomAccessFile(new File(filename), "r");
+
+		channel = raf.getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(TczWriter.HEADER_BYTES);
+
+		readFully(header, 0);
+
+		if (header.getInt() != TczWriter.MAGIC || header.getInt() != TczWriter.VERSION) {
+
+			raf.close();
+
+			throw new IOException("not a tcz file: " + filename);
+		}
+
+		numTracks = header.getLong();
+
+		numBlocks = (int) header.getLong();
+
+		long indexPosition = header.getLong();
+
+		positions = new long[numBlocks];
+		compressedLengths = new int[numBlocks];
+		rawLengths = new int[numBlocks];
+		firstTracks = new long[numBlocks];
+		trackCounts = new int[numBlocks];
+		bounds = new float[numBlocks * 6];
+
+		ByteBuffer index = ByteBuffer.allocate(numBlocks * TczWriter.INDEX_ENTRY_BYTES);
+
+		readFully(index, indexPosition);
+
+		for (int b = 0; b < numBlocks; b++) {
+
+			positions[b] = index.getLong();
+			compressedLengths[b] = index.getInt();
+			rawLengths[b] = index.getInt();
+			firstTracks[b] = index.getLong();
+			trackCounts[b] = index.getInt();
+			for (int i = 0; i < 6; i++) {
+				bounds[b * 6 + i] = index.getFloat();
+			}
+		}
+	}
+
+	public void close() throws IOException {
+
+		raf.close();
+	}
+
+	public int numBlocks() {
+
+		return numBlocks;
+	}
+
+	@Override
+	public long numTracks() {
+
+		return numTracks;
+	}
+
+	@Override
+	public int pointCount(long track) {
+
+		Block block = blockOf(track);
+
+		int t = (int) (track - block.firstTrack);
+
+		return block.starts[t + 1] - block.starts[t];
+	}
+
+	@Override
+	public void read(long track, TrackCoords coords) {
+
+		Block block = blockOf(track);
+
+		copyTrack(block, (int) (track - block.firstTrack), coords);
+	}
+
+	/**
+	 * Decompress the whole file into memory using the given number of threads. Blocks
+	 * are appended in order as they are decoded; at most two blocks per thread are
+	 * decoded ahead of the append, so memory use is the result plus a few blocks.
+	 */
+	public TrackColumns loadAll(int threads) {
+
+		int workers = Math.max(1, threads);
+
+		int window = Math.min(numBlocks, 2 * workers);
+
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+		// block b is decoded in slot b % window
+
+		List<Future<Block>> slots = new ArrayList<>();
+
+		TrackColumns columns = new TrackColumns();
+
+		TrackCoords coords = new TrackCoords();
+
+		try {
+
+			for (int b = 0; b < window; b++) {
+				slots.add(decodeLater(pool, b, new Block()));
+			}
+
+			for (int b = 0; b < numBlocks; b++) {
+
+				Block block = slots.get(b % window).get();
+
+				for (int t = 0; t < trackCounts[b]; t++) {
+
+					copyTrack(block, t, coords);
+
+					columns.append(coords);
+				}
+
+				// the appended block's arrays are reused for the next block of its slot
+
+				if (b + window < numBlocks)
+					slots.set(b % window, decodeLater(pool, b + window, block));
+			}
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+
+			throw new RuntimeException(e);
+
+		} catch (ExecutionException e) {
+
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+
+			throw new RuntimeException(e.getCause());
+
+		} finally {
+
+			pool.shutdownNow();
+		}
+
+		return columns;
+	}
+
+	private Future<Block> decodeLater(ExecutorService pool, final int b, final Block block) {
+
+		return pool.submit(() -> {
+
+			decode(b, block);
+
+			return block;
+		});
+	}
+
+	/**
+	 * The numbers of the tracks matching a region of interest rule, in increasing order.
+	 * Blocks whose bounds the rule rules out are never read.
+	 */
+	public long[] search(final Roi roi, int threads) {
+
+		final long[][] found = new long[numBlocks][];
+
+		Parallel.forRange(numBlocks, threads, 1, new Parallel.RangeBody() {
+
+			@Override
+			public void run(int worker, long from, long to) {
+
+				float[] blockBounds = new float[6];
+
+				float[] trackBounds = new float[6];
+
+				TrackCoords coords = new TrackCoords();
+
+				Block block = new Block();
+
+				for (int b = (int) from; b < to; b++) {
+
+					System.arraycopy(bounds, b * 6, blockBounds, 0, 6);
+
+					if (!roi.mayMatch(blockBounds))
+						continue;
+
+					decode(b, block);
+
+					long[] hits = new long[trackCounts[b]];
+
+					int n = 0;
+
+					for (int t = 0; t < trackCounts[b]; t++) {
+
+						copyTrack(block, t, coords);
+
+						TrackGeometry.bounds(coords, trackBounds);
+
+						if (roi.matches(coords, trackBounds))
+							hits[n++] = firstTracks[b] + t;
+					}
+
+					found[b] = Arrays.copyOf(hits, n);
+				}
+			}
+		});
+
+		int total = 0;
+
+		for (long[] hits : found) {
+			if (hits != null)
+				total += hits.length;
+		}
+
+		long[] result = new long[total];
+
+		int pos = 0;
+
+		for (long[] hits : found) {
+
+			if (hits != null) {
+
+				System.arraycopy(hits, 0, result, pos, hits.length);
+
+				pos += hits.length;
+			}
+		}
+
+		return result;
+	}
+
+	private Block blockOf(long track) {
+
+		if (track < 0 || track >= numTracks)
+			throw new IndexOutOfBoundsException("track " + track + " of " + numTracks);
+
+		Block block = lastBlock.get();
+
+		if (block.number >= 0 && track >= block.firstTrack && track < block.firstTrack + trackCounts[block.number])
+			return block;
+
+		int b = Arrays.binarySearch(firstTracks, track);
+
+		if (b < 0)
+			b = -b - 2;
+
+		decode(b, block);
+
+		return block;
+	}
+
+	private static void copyTrack(Block block, int t, TrackCoords coords) {
+
+		int first = block.starts[t];
+
+		int count = block.starts[t + 1] - first;
+
+		coords.setCount(count);
+
+		System.arraycopy(block.xs, first, coords.xs, 0, count);
+		System.arraycopy(block.ys, first, coords.ys, 0, count);
+		System.arraycopy(block.zs, first, coords.zs, 0, count);
+	}
+
+	private void decode(int b, Block block) {
+
+		byte[] raw = new byte[rawLengths[b]];
+
+		try {
+
+			ByteBuffer compressed = ByteBuffer.allocate(compressedLengths[b]);
+
+			readFully(compressed, positions[b]);
+
+			Inflater inflater = new Inflater();
+
+			try {
+
+				inflater.setInput(compressed.array());
+
+				int n = 0;
+
+				while (n < raw.length && !inflater.finished())
+					n += inflater.inflate(raw, n, raw.length - n);
+
+				if (n != raw.length)
+					throw new IOException("block " + b + " is truncated");
+
+			} finally {
+
+				inflater.end();
+			}
+
+		} catch (IOException e) {
+
+			throw new UncheckedIOException(e);
+
+		} catch (DataFormatException e) {
+
+			throw new UncheckedIOException(new IOException("block " + b + " is corrupt", e));
+		}
+
+		int numTracksInBlock = trackCounts[b];
+
+		if (block.starts.length < numTracksInBlock + 1)
+			block.starts = new int[numTracksInBlock + 1];
+
+		// the encoded size bounds the point count: every value takes at least one byte
+
+		int maxPoints = raw.length / 3;
+
+		if (block.xs.length < maxPoints) {
+			block.xs = new float[maxPoints];
+			block.ys = new float[maxPoints];
+			block.zs = new float[maxPoints];
+		}
+
+		int[] pos = new int[1];
+
+		int points = 0;
+
+		for (int t = 0; t < numTracksInBlock; t++) {
+
+			block.starts[t] = points;
+
+			int count = varint(raw, pos);
+
+			column(raw, pos, block.xs, points, count);
+			column(raw, pos, block.ys, points, count);
+			column(raw, pos, block.zs, points, count);
+
+			points += count;
+		}
+
+		block.starts[numTracksInBlock] = points;
+
+		block.firstTrack = firstTracks[b];
+
+		block.number = b;
+	}
+
+	private static void column(byte[] raw, int[] pos, float[] out, int offset, int count) {
+
+		int prev = 0;
+
+		for (int i = 0; i < count; i++) {
+
+			int zigzag = varint(raw, pos);
+
+			int bits = prev + ((zigzag >>> 1) ^ -(zigzag & 1));
+
+			out[offset + i] = Float.intBitsToFloat(bits);
+
+			prev = bits;
+		}
+	}
+
+	private static int varint(byte[] raw, int[] pos) {
+
+		int p = pos[0];
+
+		int value = 0;
+
+		int shift = 0;
+
+		while (true) {
+
+			byte b = raw[p++];
+
+			value |= (b & 0x7f) << shift;
+
+			if (b >= 0)
+				break;
+
+			shift += 7;
+		}
+
+		pos[0] = p;
+
+		return value;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+
+		while (buffer.hasRemaining()) {
+
+			int n = channel.read(buffer, position + buffer.position());
+
+			if (n < 0)
+				throw new IOException("unexpected end of tcz file");
+		}
+
+		buffer.flip();
+	}
+}
@@ -0,0 +1,295 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a block compressed tractogram (.tcz). Tracks are gathered into blocks of
+ * about blockBytes of encoded data; each block is compressed on its own with a
+ * Deflater so it can be decoded without touching any other block.
+ *
+ * Encoding of one track inside a block: the point count as a varint, then all its x
+ * values, then all its y values, then all its z values. Each value is stored as the
+ * zigzag varint of the difference between its float bits and the float bits of the
+ * previous value in the same column (0 for the first). Neighboring points have
+ * nearly equal bits so the differences are small. The encoding is lossless.
+ *
+ * File layout (big endian):
+ *
+ *   header: magic, version, track count, block count, index position
+ *   blocks: compressed bytes of each block
+ *   index: for each block its file position, compressed length, encoded length,
+ *          first track, track count and bounds (minx, miny, minz, maxx, maxy, maxz)
+ *
+ * See TczFile for reading.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TczWriter implements Closeable {
+
+	static final int MAGIC = 0x54435a31;  // "TCZ1"
+
+	static final int VERSION = 1;
+
+	static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8;
+
+	static final int INDEX_ENTRY_BYTES = 8 + 4 + 4 + 8 + 4 + 6 * 4;
+
+	public static final int DEFAULT_BLOCK_BYTES = 1 << 20;
+
+	private final RandomAccessFile raf;
+
+	private final int blockBytes;
+
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+	private byte[] raw = new byte[1 << 16];
+
+	private int rawLength;
+
+	private byte[] compressed = new byte[1 << 16];
+
+	private final float[] blockBounds = new float[6];
+
+	private final float[] trackBounds = new float[6];
+
+	private long blockFirstTrack;
+
+	private int blockTracks;
+
+	private long numTracks;
+
+	// index entries gathered as we go
+
+	private long[] positions = new long[64];
+	private int[] compressedLengths = new int[64];
+	private int[] rawLengths = new int[64];
+	private long[] firstTracks = new long[64];
+	private int[] trackCounts = new int[64];
+	private float[] bounds = new float[64 * 6];
+	private int numBlocks;
+
+	private boolean closed;
+
+	public TczWriter(String filename) throws IOException {
+
+		this(filename, DEFAULT_BLOCK_BYTES);
+	}
+
+	public TczWriter(String filename, int blockBytes) throws IOException {
+
+		this.blockBytes = blockBytes;
+
+		raf = new RandomAccessFile(filename, "rw");
+
+		raf.setLength(0);
+
+		// header is filled in by close()
+
+		raf.write(new byte[HEADER_BYTES]);
+
+		resetBounds();
+	}
+
+	/**
+	 * Write every track of a source to a new .tcz file.
+	 */
+	public static void convert(TrackSource source, String filename) throws IOException {
+
+		TczWriter writer = new TczWriter(filename);
+
+		try {
+
+			TrackCoords coords = new TrackCoords();
+
+			for (long i = 0; i < source.numTracks(); i++) {
+
+				source.read(i, coords);
+
+				writer.write(coords);
+			}
+
+		} finally {
+
+			writer.close();
+		}
+	}
+
+	public void write(TrackCoords track) throws IOException {
+
+		int count = track.count();
+
+		ensureRaw(5 + 15L * count);
+
+		putVarint(count);
+
+		putColumn(track.xs, count);
+		putColumn(track.ys, count);
+		putColumn(track.zs, count);
+
+		TrackGeometry.bounds(track, trackBounds);
+
+		for (int i = 0; i < 3; i++) {
+			blockBounds[i] = Math.min(blockBounds[i], trackBounds[i]);
+			blockBounds[i+3] = Math.max(blockBounds[i+3], trackBounds[i+3]);
+		}
+
+		blockTracks++;
+
+		numTracks++;
+
+		if (rawLength >= blockBytes)
+			flushBlock();
+	}
+
+	private void putColumn(float[] values, int count) {
+
+		int prev = 0;
+
+		for (int i = 0; i < count; i++) {
+
+			int bits = Float.floatToRawIntBits(values[i]);
+
+			int delta = bits - prev;
+
+			putVarint((delta << 1) ^ (delta >> 31));
+
+			prev = bits;
+		}
+	}
+
+	private void putVarint(int value) {
+
+		while ((value & ~0x7f) != 0) {
+
+			raw[rawLength++] = (byte) ((value & 0x7f) | 0x80);
+
+			value >>>= 7;
+		}
+
+		raw[rawLength++] = (byte) value;
+	}
+
+	private void ensureRaw(long extra) {
+
+		if (rawLength + extra > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("track too large for one block");
+
+		if (rawLength + extra > raw.length)
+			raw = Arrays.copyOf(raw, (int) Math.max(rawLength + extra, 2L * raw.length));
+	}
+
+	private void resetBounds() {
+
+		Arrays.fill(blockBounds, 0, 3, Float.POSITIVE_INFINITY);
+
+		Arrays.fill(blockBounds, 3, 6, Float.NEGATIVE_INFINITY);
+	}
+
+	private void flushBlock() throws IOException {
+
+		if (blockTracks == 0)
+			return;
+
+		deflater.reset();
+
+		deflater.setInput(raw, 0, rawLength);
+
+		deflater.finish();
+
+		int length = 0;
+
+		while (!deflater.finished()) {
+
+			if (length == compressed.length)
+				compressed = Arrays.copyOf(compressed, compressed.length * 2);
+
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+
+		if (numBlocks == positions.length) {
+
+			int n = numBlocks * 2;
+
+			positions = Arrays.copyOf(positions, n);
+			compressedLengths = Arrays.copyOf(compressedLengths, n);
+			rawLengths = Arrays.copyOf(rawLengths, n);
+			firstTracks = Arrays.copyOf(firstTracks, n);
+			trackCounts = Arrays.copyOf(trackCounts, n);
+			bounds = Arrays.copyOf(bounds, n * 6);
+		}
+
+		positions[numBlocks] = raf.getFilePointer();
+		compressedLengths[numBlocks] = length;
+		rawLengths[numBlocks] = rawLength;
+		firstTracks[numBlocks] = blockFirstTrack;
+		trackCounts[numBlocks] = blockTracks;
+		System.arraycopy(blockBounds, 0, bounds, numBlocks * 6, 6);
+
+		numBlocks++;
+
+		raf.write(compressed, 0, length);
+
+		rawLength = 0;
+
+		blockFirstTrack = numTracks;
+
+		blockTracks = 0;
+
+		resetBounds();
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		if (closed)
+			return;
+
+		closed = true;
+
+		try {
+
+			flushBlock();
+
+			long indexPosition = raf.getFilePointer();
+
+			ByteBuffer index = ByteBuffer.allocate(numBlocks * INDEX_ENTRY_BYTES);
+
+			for (int b = 0; b < numBlocks; b++) {
+
+				index.putLong(positions[b]);
+				index.putInt(compressedLengths[b]);
+				index.putInt(rawLengths[b]);
+				index.putLong(firstTracks[b]);
+				index.putInt(trackCounts[b]);
+				for (int i = 0; i < 6; i++) {
+					index.putFloat(bounds[b * 6 + i]);
+				}
+			}
+
+			raf.write(index.array());
+
+			raf.seek(0);
+
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeLong(numTracks);
+			raf.writeLong(numBlocks);
+			raf.writeLong(indexPosition);
+
+		} finally {
+
+			deflater.end();
+
+			raf.close();
+		}
+	}
+}
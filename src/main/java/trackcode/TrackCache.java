@@ -0,0 +1,290 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nom.bdezonia.zorbage.type.geom.polygonalchain.PolygonalChainMember;
+
+/**
+ * A size bounded LRU cache of decoded tracks sitting in front of a TrackSource.
+ * Besides the decoded points it keeps values derived from them (bounds, length,
+ * the zorbage chain, and one resampled form) so repeated queries on hot tracks
+ * skip decoding and recalculation. Entries are weighed by their approximate size
+ * in bytes and the least recently used are evicted once maxBytes is exceeded.
+ *
+ * Objects handed out by the cache are shared: callers must not modify them.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TrackCache implements TrackSource {
+
+	private static final long ENTRY_OVERHEAD = 160;
+
+	private static class Entry {
+
+		final TrackCoords coords;
+		final float[] bounds = new float[6];
+		float length = Float.NaN;
+		PolygonalChainMember chain;
+		TrackCoords resampled;
+		long weight;
+		boolean cached;
+
+		Entry(TrackCoords coords) {
+			this.coords = coords;
+			TrackGeometry.bounds(coords, bounds);
+			weight = ENTRY_OVERHEAD + 12L * coords.count();
+		}
+	}
+
+	private final TrackSource source;
+
+	private final long maxBytes;
+
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+
+	private long bytes;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	public TrackCache(TrackSource source, long maxBytes) {
+
+		this.source = source;
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public long numTracks() {
+
+		return source.numTracks();
+	}
+
+	@Override
+	public int pointCount(long track) {
+
+		return source.pointCount(track);
+	}
+
+	@Override
+	public void read(long track, TrackCoords coords) {
+
+		coords.set(entry(track).coords);
+	}
+
+	public TrackCoords coords(long track) {
+
+		return entry(track).coords;
+	}
+
+	/**
+	 * Returns minx, miny, minz, maxx, maxy, maxz of the track.
+	 */
+	public float[] bounds(long track) {
+
+		return entry(track).bounds;
+	}
+
+	public float length(long track) {
+
+		Entry e = entry(track);
+
+		synchronized (e) {
+
+			if (Float.isNaN(e.length))
+				e.length = TrackGeometry.length(e.coords);
+
+			return e.length;
+		}
+	}
+
+	public PolygonalChainMember chain(long track) {
+
+		Entry e = entry(track);
+
+		PolygonalChainMember chain;
+
+		synchronized (e) {
+
+			if (e.chain != null)
+				return e.chain;
+
+			chain = e.chain = e.coords.toChain();
+		}
+
+		grow(e, 12L * e.coords.count());
+
+		return chain;
+	}
+
+	/**
+	 * The track resampled to n points (see TrackGeometry.resample). Only the most
+	 * recently requested resampling of each track is kept.
+	 */
+	public TrackCoords resampled(long track, int n) {
+
+		Entry e = entry(track);
+
+		TrackCoords resampled;
+
+		long oldCount;
+
+		synchronized (e) {
+
+			if (e.resampled != null && e.resampled.count() == n)
+				return e.resampled;
+
+			oldCount = (e.resampled == null) ? 0 : e.resampled.count();
+
+			resampled = new TrackCoords(n);
+
+			TrackGeometry.resample(e.coords, n, resampled);
+
+			e.resampled = resampled;
+		}
+
+		grow(e, 12L * (n - oldCount));
+
+		return resampled;
+	}
+
+	public synchronized long hits() {
+
+		return hits;
+	}
+
+	public synchronized long misses() {
+
+		return misses;
+	}
+
+	public synchronized long evictions() {
+
+		return evictions;
+	}
+
+	public synchronized long weightInBytes() {
+
+		return bytes;
+	}
+
+	public synchronized int size() {
+
+		return entries.size();
+	}
+
+	public synchronized double hitRate() {
+
+		long total = hits + misses;
+
+		return (total == 0) ? 0 : ((double) hits) / total;
+	}
+
+	public synchronized void clear() {
+
+		for (Entry e : entries.values()) {
+			e.cached = false;
+		}
+
+		entries.clear();
+
+		bytes = 0;
+	}
+
+	public synchronized void printStats(PrintStream stream) {
+
+		stream.println("cache entries  = " + entries.size());
+		stream.println("cache bytes    = " + bytes + " of " + maxBytes);
+		stream.println("cache hits     = " + hits);
+		stream.println("cache misses   = " + misses);
+		stream.println("cache evicted  = " + evictions);
+	}
+
+	private Entry entry(long track) {
+
+		Long key = track;
+
+		synchronized (this) {
+
+			Entry e = entries.get(key);
+
+			if (e != null) {
+
+				hits++;
+
+				return e;
+			}
+
+			misses++;
+		}
+
+		// decode outside the lock so one miss does not stall other readers
+
+		TrackCoords coords = new TrackCoords(Math.max(1, source.pointCount(track)));
+
+		source.read(track, coords);
+
+		Entry decoded = new Entry(coords);
+
+		synchronized (this) {
+
+			Entry raced = entries.get(key);
+
+			if (raced != null)
+				return raced;
+
+			entries.put(key, decoded);
+
+			decoded.cached = true;
+
+			bytes += decoded.weight;
+
+			evict();
+		}
+
+		return decoded;
+	}
+
+	private synchronized void grow(Entry e, long extra) {
+
+		// the entry may have been evicted while we were calculating
+
+		e.weight += extra;
+
+		if (!e.cached)
+			return;
+
+		bytes += extra;
+
+		evict();
+	}
+
+	private void evict() {
+
+		Iterator<Map.Entry<Long, Entry>> iter = entries.entrySet().iterator();
+
+		// always keep the newest entry even if it alone is larger than the budget
+
+		while (bytes > maxBytes && entries.size() > 1 && iter.hasNext()) {
+
+			Entry e = iter.next().getValue();
+
+			iter.remove();
+
+			e.cached = false;
+
+			bytes -= e.weight;
+
+			evictions++;
+		}
+	}
+}
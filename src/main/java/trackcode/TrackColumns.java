@@ -0,0 +1,201 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.util.Arrays;
+
+/**
+ * An in memory tractogram that tracks can be appended to. Points of all tracks are
+ * kept in three flat coordinate columns, with a start position and the bounds
+ * (minx, miny, minz, maxx, maxy, maxz) of every track. Appending a track is
+ * amortized O(points) and never touches earlier tracks.
+ *
+ * Passing a TrackColumns to a loader as its TrackVisitor appends every loaded track.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TrackColumns implements TrackSource, TrackVisitor {
+
+	private float[] xs = new float[1024];
+	private float[] ys = new float[1024];
+	private float[] zs = new float[1024];
+
+	private long[] starts = new long[16];
+
+	private float[] bounds = new float[6 * 16];
+
+	private int numTracks;
+
+	private int numPoints;
+
+	@Override
+	public long numTracks() {
+
+		return numTracks;
+	}
+
+	public long numPoints() {
+
+		return numPoints;
+	}
+
+	@Override
+	public int pointCount(long track) {
+
+		return (int) (starts[(int) track + 1] - starts[(int) track]);
+	}
+
+	@Override
+	public void read(long track, TrackCoords coords) {
+
+		int first = (int) starts[(int) track];
+
+		int count = pointCount(track);
+
+		coords.setCount(count);
+
+		System.arraycopy(xs, first, coords.xs, 0, count);
+		System.arraycopy(ys, first, coords.ys, 0, count);
+		System.arraycopy(zs, first, coords.zs, 0, count);
+	}
+
+	/**
+	 * Copy the bounds of a track into the first 6 entries of out.
+	 */
+	public void bounds(long track, float[] out) {
+
+		System.arraycopy(bounds, 6 * (int) track, out, 0, 6);
+	}
+
+	/**
+	 * Appends the track. The track number given by the loader is ignored: tracks are
+	 * numbered in the order they are appended.
+	 */
+	@Override
+	public void visit(long track, TrackCoords coords) {
+
+		append(coords);
+	}
+
+	/**
+	 * Append a track and return its track number.
+	 */
+	public long append(TrackCoords coords) {
+
+		int count = coords.count();
+
+		if ((long) numPoints + count > Integer.MAX_VALUE - 8)
+			throw new IllegalStateException("too many points for in memory columns");
+
+		if (numPoints + count > xs.length) {
+
+			int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(numPoints + count, 2L * xs.length));
+
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			zs = Arrays.copyOf(zs, capacity);
+		}
+
+		if (numTracks + 2 > starts.length) {
+
+			starts = Arrays.copyOf(starts, starts.length * 2);
+
+			bounds = Arrays.copyOf(bounds, bounds.length * 2);
+		}
+
+		System.arraycopy(coords.xs, 0, xs, numPoints, count);
+		System.arraycopy(coords.ys, 0, ys, numPoints, count);
+		System.arraycopy(coords.zs, 0, zs, numPoints, count);
+
+		float[] b = new float[6];
+
+		TrackGeometry.bounds(coords, b);
+
+		System.arraycopy(b, 0, bounds, 6 * numTracks, 6);
+
+		numPoints += count;
+
+		numTracks++;
+
+		starts[numTracks] = numPoints;
+
+		return numTracks - 1;
+	}
+
+	// the raw columns are exposed for bulk processing. only the first numPoints() entries are valid.
+
+	public float[] xs() {
+
+		return xs;
+	}
+
+	public float[] ys() {
+
+		return ys;
+	}
+
+	public float[] zs() {
+
+		return zs;
+	}
+
+	/**
+	 * The position in the raw columns of a track's first point. firstPoint(numTracks())
+	 * is numPoints().
+	 */
+	public int firstPoint(long track) {
+
+		return (int) starts[(int) track];
+	}
+
+	/**
+	 * Recalculate the stored bounds of all tracks. Call this after changing the raw
+	 * columns directly.
+	 */
+	public void recalcBounds() {
+
+		recalcBounds(0, numTracks);
+	}
+
+	/**
+	 * Recalculate the stored bounds of tracks firstTrack to endTrack-1 from the raw
+	 * columns. Ranges that do not overlap may be done on different threads.
+	 */
+	public void recalcBounds(long firstTrack, long endTrack) {
+
+		for (int t = (int) firstTrack; t < endTrack; t++) {
+
+			float minx = Float.POSITIVE_INFINITY;
+			float miny = Float.POSITIVE_INFINITY;
+			float minz = Float.POSITIVE_INFINITY;
+			float maxx = Float.NEGATIVE_INFINITY;
+			float maxy = Float.NEGATIVE_INFINITY;
+			float maxz = Float.NEGATIVE_INFINITY;
+
+			for (int i = (int) starts[t]; i < starts[t + 1]; i++) {
+
+				float x = xs[i];
+				float y = ys[i];
+				float z = zs[i];
+
+				if (x < minx) minx = x;
+				if (x > maxx) maxx = x;
+				if (y < miny) miny = y;
+				if (y > maxy) maxy = y;
+				if (z < minz) minz = z;
+				if (z > maxz) maxz = z;
+			}
+
+			int o = 6 * t;
+
+			bounds[o] = minx;
+			bounds[o+1] = miny;
+			bounds[o+2] = minz;
+			bounds[o+3] = maxx;
+			bounds[o+4] = maxy;
+			bounds[o+5] = maxz;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.util.Arrays;
+
+import nom.bdezonia.zorbage.type.geom.polygonalchain.PolygonalChainMember;
+
+/**
+ * A reusable columnar holder for the points of one track. The x, y, and z arrays
+ * may be longer than the track: only the first count() entries are valid. Reusing
+ * one of these per thread avoids allocating on every track read.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TrackCoords {
+
+	public float[] xs;
+	public float[] ys;
+	public float[] zs;
+
+	private int count;
+
+	public TrackCoords() {
+
+		this(16);
+	}
+
+	public TrackCoords(int capacity) {
+
+		xs = new float[capacity];
+		ys = new float[capacity];
+		zs = new float[capacity];
+		count = 0;
+	}
+
+	public int count() {
+
+		return count;
+	}
+
+	/**
+	 * Set the number of valid points, growing the arrays if needed. Existing values
+	 * within the new count are preserved.
+	 */
+	public void setCount(int newCount) {
+
+		if (newCount > xs.length) {
+
+			int capacity = Math.max(newCount, xs.length + (xs.length >> 1));
+
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			zs = Arrays.copyOf(zs, capacity);
+		}
+
+		count = newCount;
+	}
+
+	public void add(float x, float y, float z) {
+
+		int i = count;
+
+		setCount(count + 1);
+
+		xs[i] = x;
+		ys[i] = y;
+		zs[i] = z;
+	}
+
+	public void clear() {
+
+		count = 0;
+	}
+
+	public void set(TrackCoords other) {
+
+		setCount(other.count);
+
+		System.arraycopy(other.xs, 0, xs, 0, other.count);
+		System.arraycopy(other.ys, 0, ys, 0, other.count);
+		System.arraycopy(other.zs, 0, zs, 0, other.count);
+	}
+
+	public TrackCoords duplicate() {
+
+		TrackCoords copy = new TrackCoords(Math.max(1, count));
+
+		copy.set(this);
+
+		return copy;
+	}
+
+	/**
+	 * Build a zorbage chain from the valid points. The chain gets its own copies of
+	 * the coordinates so this holder can be reused afterwards.
+	 */
+	public PolygonalChainMember toChain() {
+
+		return new PolygonalChainMember(
+						Arrays.copyOf(xs, count),
+						Arrays.copyOf(ys, count),
+						Arrays.copyOf(zs, count));
+	}
+}
@@ -0,0 +1,117 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.util.Arrays;
+
+/**
+ * A track density image (TDI): for every voxel of a grid the number of tracks that
+ * pass through it. Each track counts at most once per voxel. Segments are followed
+ * by sampling them at intervals of half the smallest voxel size.
+ *
+ * Use it as a TrackVisitor of a loader or a tail reader to build it as tracks arrive.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TrackDensityMap implements TrackVisitor {
+
+	private final VoxelGrid grid;
+
+	private final int[] counts;
+
+	// the last track (plus one) that counted in each voxel: avoids counting a track twice
+
+	private final int[] stamps;
+
+	private int stamp;
+
+	private long numTracks;
+
+	public TrackDensityMap(VoxelGrid grid) {
+
+		if (grid.numVoxels() > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("grid too large");
+
+		this.grid = grid;
+		this.counts = new int[(int) grid.numVoxels()];
+		this.stamps = new int[counts.length];
+	}
+
+	public VoxelGrid grid() {
+
+		return grid;
+	}
+
+	public int[] counts() {
+
+		return counts;
+	}
+
+	public long numTracks() {
+
+		return numTracks;
+	}
+
+	@Override
+	public void visit(long track, TrackCoords coords) {
+
+		add(coords);
+	}
+
+	public void add(TrackCoords coords) {
+
+		numTracks++;
+
+		stamp++;
+
+		if (stamp == Integer.MAX_VALUE) {
+
+			Arrays.fill(stamps, 0);
+
+			stamp = 1;
+		}
+
+		float[] xs = coords.xs;
+		float[] ys = coords.ys;
+		float[] zs = coords.zs;
+
+		int count = coords.count();
+
+		float step = grid.minVoxelSize() / 2;
+
+		for (int i = 0; i < count; i++) {
+
+			hit(xs[i], ys[i], zs[i]);
+
+			if (i == count - 1)
+				break;
+
+			float dx = xs[i+1] - xs[i];
+			float dy = ys[i+1] - ys[i];
+			float dz = zs[i+1] - zs[i];
+
+			int samples = (int) (Math.sqrt(dx*dx + dy*dy + dz*dz) / step);
+
+			for (int s = 1; s <= samples; s++) {
+
+				float t = ((float) s) / (samples + 1);
+
+				hit(xs[i] + t*dx, ys[i] + t*dy, zs[i] + t*dz);
+			}
+		}
+	}
+
+	private void hit(float x, float y, float z) {
+
+		long v = grid.voxel(x, y, z);
+
+		if (v < 0 || stamps[(int) v] == stamp)
+			return;
+
+		stamps[(int) v] = stamp;
+
+		counts[(int) v]++;
+	}
+}
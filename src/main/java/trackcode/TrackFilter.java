@@ -0,0 +1,17 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+/**
+ * Decides whether a decoded track is kept. Loaders apply filters before anything is
+ * placed in storage so discarded tracks cost no storage at all. See TrackFilters for
+ * the common ones.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public interface TrackFilter {
+
+	boolean accept(TrackCoords track);
+}
@@ -0,0 +1,139 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+/**
+ * Common track filters for use while loading.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TrackFilters {
+
+	private TrackFilters() { }
+
+	/**
+	 * Keep tracks whose length is within [min,max]. Stops measuring as soon as max is passed.
+	 */
+	public static TrackFilter lengthBetween(final float min, final float max) {
+
+		return new TrackFilter() {
+
+			@Override
+			public boolean accept(TrackCoords track) {
+
+				float[] xs = track.xs;
+				float[] ys = track.ys;
+				float[] zs = track.zs;
+
+				double sum = 0;
+
+				for (int i = 1; i < track.count(); i++) {
+
+					double dx = xs[i] - xs[i-1];
+					double dy = ys[i] - ys[i-1];
+					double dz = zs[i] - zs[i-1];
+
+					sum += Math.sqrt(dx*dx + dy*dy + dz*dz);
+
+					if (sum > max)
+						return false;
+				}
+
+				return sum >= min;
+			}
+		};
+	}
+
+	public static TrackFilter minLength(float min) {
+
+		return lengthBetween(min, Float.POSITIVE_INFINITY);
+	}
+
+	public static TrackFilter maxLength(float max) {
+
+		return lengthBetween(0, max);
+	}
+
+	/**
+	 * Keep tracks with a point count within [min,max].
+	 */
+	public static TrackFilter pointsBetween(final int min, final int max) {
+
+		return new TrackFilter() {
+
+			@Override
+			public boolean accept(TrackCoords track) {
+
+				return track.count() >= min && track.count() <= max;
+			}
+		};
+	}
+
+	/**
+	 * Keep tracks lying entirely inside a box.
+	 */
+	public static TrackFilter within(final float minx, final float miny, final float minz,
+										final float maxx, final float maxy, final float maxz)
+	{
+		return new TrackFilter() {
+
+			@Override
+			public boolean accept(TrackCoords track) {
+
+				for (int i = 0; i < track.count(); i++) {
+
+					float x = track.xs[i];
+					float y = track.ys[i];
+					float z = track.zs[i];
+
+					if (x < minx || x > maxx || y < miny || y > maxy || z < minz || z > maxz)
+						return false;
+				}
+
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Keep tracks that are accepted by a region of interest rule.
+	 */
+	public static TrackFilter matching(final Roi roi) {
+
+		return new TrackFilter() {
+
+			private final float[] bounds = new float[6];
+
+			@Override
+			public boolean accept(TrackCoords track) {
+
+				TrackGeometry.bounds(track, bounds);
+
+				return roi.matches(track, bounds);
+			}
+		};
+	}
+
+	/**
+	 * Keep tracks accepted by all the filters. Put cheap filters first: evaluation
+	 * stops at the first rejection.
+	 */
+	public static TrackFilter all(final TrackFilter... filters) {
+
+		return new TrackFilter() {
+
+			@Override
+			public boolean accept(TrackCoords track) {
+
+				for (TrackFilter filter : filters) {
+					if (!filter.accept(track))
+						return false;
+				}
+
+				return true;
+			}
+		};
+	}
+}
@@ -0,0 +1,78 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.IOException;
+
+/**
+ * A problem with the contents of a track file: a truncated or corrupt track, a bad
+ * header or an unsupported data type. It records what kind of problem was found,
+ * which track it was in and where in the file it was found.
+ *
+ * The decoders in Main either throw these or, when given a list to collect them in,
+ * record them and carry on with the next readable track.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TrackFormatException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Kind {
+
+		// the header has no end or can not be understood
+		BAD_HEADER,
+
+		// the header names a data type that can not be decoded
+		UNKNOWN_DATATYPE,
+
+		// a .trk track claims an impossible number of points
+		BAD_POINT_COUNT,
+
+		// a point has some but not all of its coordinates set to NaN or infinity
+		CORRUPT_POINT,
+
+		// the file ends in the middle of a track
+		TRUNCATED_TRACK,
+
+		// a .tck file ends without its end of data marker
+		MISSING_END_MARKER
+	}
+
+	private final Kind kind;
+
+	private final long track;
+
+	private final long offset;
+
+	/**
+	 * track is the number of the track in the file counting from 0 (-1 if the problem is
+	 * not in a track) and offset is the byte position in the file where the problem was
+	 * found (-1 if not known).
+	 */
+	public TrackFormatException(Kind kind, long track, long offset, String message) {
+
+		super(message + " (" + kind + ", track " + track + ", offset " + offset + ")");
+
+		this.kind = kind;
+		this.track = track;
+		this.offset = offset;
+	}
+
+	public Kind kind() {
+
+		return kind;
+	}
+
+	public long track() {
+
+		return track;
+	}
+
+	public long offset() {
+
+		return offset;
+	}
+}
@@ -0,0 +1,152 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+/**
+ * Simple geometric calculations on the columnar points of one track.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TrackGeometry {
+
+	private TrackGeometry() { }
+
+	public static float length(TrackCoords coords) {
+
+		float[] xs = coords.xs;
+		float[] ys = coords.ys;
+		float[] zs = coords.zs;
+
+		double sum = 0;
+
+		for (int i = 1; i < coords.count(); i++) {
+
+			double dx = xs[i] - xs[i-1];
+			double dy = ys[i] - ys[i-1];
+			double dz = zs[i] - zs[i-1];
+
+			sum += Math.sqrt(dx*dx + dy*dy + dz*dz);
+		}
+
+		return (float) sum;
+	}
+
+	/**
+	 * Fill bounds with minx, miny, minz, maxx, maxy, maxz. An empty track gets
+	 * inverted (infinite) bounds that intersect nothing.
+	 */
+	public static void bounds(TrackCoords coords, float[] bounds) {
+
+		float minx = Float.POSITIVE_INFINITY;
+		float miny = Float.POSITIVE_INFINITY;
+		float minz = Float.POSITIVE_INFINITY;
+		float maxx = Float.NEGATIVE_INFINITY;
+		float maxy = Float.NEGATIVE_INFINITY;
+		float maxz = Float.NEGATIVE_INFINITY;
+
+		for (int i = 0; i < coords.count(); i++) {
+
+			float x = coords.xs[i];
+			float y = coords.ys[i];
+			float z = coords.zs[i];
+
+			if (x < minx) minx = x;
+			if (x > maxx) maxx = x;
+			if (y < miny) miny = y;
+			if (y > maxy) maxy = y;
+			if (z < minz) minz = z;
+			if (z > maxz) maxz = z;
+		}
+
+		bounds[0] = minx;
+		bounds[1] = miny;
+		bounds[2] = minz;
+		bounds[3] = maxx;
+		bounds[4] = maxy;
+		bounds[5] = maxz;
+	}
+
+	/**
+	 * Resample a track to n points evenly spaced along its arc length. The first and
+	 * last points of the output equal those of the input. A single point track is
+	 * repeated n times. in and out must be different objects.
+	 */
+	public static void resample(TrackCoords in, int n, TrackCoords out) {
+
+		if (n < 2)
+			throw new IllegalArgumentException("resampling needs at least 2 points");
+
+		int count = in.count();
+
+		out.setCount(n);
+
+		if (count == 0) {
+			out.clear();
+			return;
+		}
+
+		float[] xs = in.xs;
+		float[] ys = in.ys;
+		float[] zs = in.zs;
+
+		double total = length(in);
+
+		if (count == 1 || total == 0) {
+
+			for (int i = 0; i < n; i++) {
+				out.xs[i] = xs[0];
+				out.ys[i] = ys[0];
+				out.zs[i] = zs[0];
+			}
+
+			return;
+		}
+
+		double step = total / (n - 1);
+
+		// walk the segments once, emitting output points as their arc position is passed
+
+		int seg = 0;
+
+		double segStart = 0;
+
+		double segLength = segmentLength(in, 0);
+
+		for (int i = 0; i < n - 1; i++) {
+
+			double target = i * step;
+
+			while (segStart + segLength < target && seg < count - 2) {
+
+				segStart += segLength;
+
+				seg++;
+
+				segLength = segmentLength(in, seg);
+			}
+
+			double t = (segLength == 0) ? 0 : (target - segStart) / segLength;
+
+			if (t > 1) t = 1;
+
+			out.xs[i] = (float) (xs[seg] + t * (xs[seg+1] - xs[seg]));
+			out.ys[i] = (float) (ys[seg] + t * (ys[seg+1] - ys[seg]));
+			out.zs[i] = (float) (zs[seg] + t * (zs[seg+1] - zs[seg]));
+		}
+
+		out.xs[n-1] = xs[count-1];
+		out.ys[n-1] = ys[count-1];
+		out.zs[n-1] = zs[count-1];
+	}
+
+	private static double segmentLength(TrackCoords coords, int seg) {
+
+		double dx = coords.xs[seg+1] - coords.xs[seg];
+		double dy = coords.ys[seg+1] - coords.ys[seg];
+		double dz = coords.zs[seg+1] - coords.zs[seg];
+
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+}
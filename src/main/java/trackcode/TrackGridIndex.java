@@ -0,0 +1,228 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A spatial index of tracks on a uniform grid of cubic cells. Each track is listed
+ * in every cell its points and segments pass through (not every cell of its bounding
+ * box, which for a long curved track is orders of magnitude more). Only occupied
+ * cells take any memory and tracks can be added at any time, so the index can grow
+ * along with a tractogram that is still being written.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TrackGridIndex {
+
+	private static class Cell {
+
+		long[] tracks = new long[4];
+		int size;
+
+		void add(long track) {
+			if (size == tracks.length)
+				tracks = Arrays.copyOf(tracks, size * 2);
+			tracks[size++] = track;
+		}
+	}
+
+	// cells larger than this many per axis are refused: the track is too big for the grid
+
+	private static final int MAX_CELLS_PER_AXIS = 1 << 20;
+
+	private final float cellSize;
+
+	private final HashMap<Long, Cell> cells = new HashMap<>();
+
+	private long numTracks;
+
+	public TrackGridIndex(float cellSize) {
+
+		if (!(cellSize > 0))
+			throw new IllegalArgumentException("cell size must be positive");
+
+		this.cellSize = cellSize;
+	}
+
+	public long numTracks() {
+
+		return numTracks;
+	}
+
+	private int cell(float coord) {
+
+		long c = (long) Math.floor(coord / cellSize);
+
+		return (int) Math.max(-MAX_CELLS_PER_AXIS, Math.min(MAX_CELLS_PER_AXIS - 1, c));
+	}
+
+	private static long key(int i, int j, int k) {
+
+		// 21 bits per axis, offset to be non negative
+
+		return ((long) (i + MAX_CELLS_PER_AXIS) << 42) | ((long) (j + MAX_CELLS_PER_AXIS) << 21) | (k + MAX_CELLS_PER_AXIS);
+	}
+
+	/**
+	 * Add a track, listing it in the cells its segments pass through.
+	 */
+	public void add(long track, TrackCoords coords) {
+
+		int count = coords.count();
+
+		if (count == 0)
+			return;
+
+		addCell(track, cell(coords.xs[0]), cell(coords.ys[0]), cell(coords.zs[0]));
+
+		for (int p = 1; p < count; p++) {
+			addSegment(track, coords.xs[p-1], coords.ys[p-1], coords.zs[p-1], coords.xs[p], coords.ys[p], coords.zs[p]);
+		}
+
+		numTracks++;
+	}
+
+	// walk the cells a segment crosses (Amanatides and Woo), one face crossing per step.
+	// the start cell was added with the previous segment.
+
+	private void addSegment(long track, float x0, float y0, float z0, float x1, float y1, float z1) {
+
+		int i = cell(x0), j = cell(y0), k = cell(z0);
+
+		int ei = cell(x1), ej = cell(y1), ek = cell(z1);
+
+		int steps = Math.abs(ei - i) + Math.abs(ej - j) + Math.abs(ek - k);
+
+		if (steps == 0)
+			return;
+
+		int di = Integer.signum(ei - i), dj = Integer.signum(ej - j), dk = Integer.signum(ek - k);
+
+		double tx = crossing(x0, x1, i, di), ty = crossing(y0, y1, j, dj), tz = crossing(z0, z1, k, dk);
+
+		double sx = step(x0, x1), sy = step(y0, y1), sz = step(z0, z1);
+
+		// counting the steps, and only stepping along axes that have not reached their
+		// end cell, keeps rounding from ever walking past the end of the segment
+
+		for (int s = 0; s < steps; s++) {
+
+			double mx = (i != ei) ? tx : Double.POSITIVE_INFINITY;
+			double my = (j != ej) ? ty : Double.POSITIVE_INFINITY;
+			double mz = (k != ek) ? tz : Double.POSITIVE_INFINITY;
+
+			if (i != ei && mx <= my && mx <= mz) {
+				i += di;
+				tx += sx;
+			}
+			else if (j != ej && my <= mz) {
+				j += dj;
+				ty += sy;
+			}
+			else {
+				k += dk;
+				tz += sz;
+			}
+
+			addCell(track, i, j, k);
+		}
+	}
+
+	// the fraction of the segment a to b at which it first leaves cell c along one axis
+
+	private double crossing(float a, float b, int c, int dir) {
+
+		if (dir == 0)
+			return Double.POSITIVE_INFINITY;
+
+		double face = (double) (dir > 0 ? c + 1 : c) * cellSize;
+
+		return (face - a) / (b - a);
+	}
+
+	// the fraction of the segment a to b that spans one cell along one axis
+
+	private double step(float a, float b) {
+
+		return (a == b) ? Double.POSITIVE_INFINITY : cellSize / Math.abs((double) b - a);
+	}
+
+	private void addCell(long track, int i, int j, int k) {
+
+		Long key = key(i, j, k);
+
+		Cell c = cells.get(key);
+
+		if (c == null) {
+			c = new Cell();
+			cells.put(key, c);
+		}
+
+		// tracks are added one at a time so a repeat visit finds itself last
+
+		if (c.size == 0 || c.tracks[c.size - 1] != track)
+			c.add(track);
+	}
+
+	/**
+	 * Index every track of a TrackColumns from firstTrack on.
+	 */
+	public void addAll(TrackColumns columns, long firstTrack) {
+
+		TrackCoords coords = new TrackCoords();
+
+		for (long t = firstTrack; t < columns.numTracks(); t++) {
+
+			columns.read(t, coords);
+
+			add(t, coords);
+		}
+	}
+
+	/**
+	 * The tracks passing through the cells touched by a box, in increasing order.
+	 * These are candidates: a full test is still needed to know if they really hit.
+	 */
+	public long[] candidates(float minx, float miny, float minz, float maxx, float maxy, float maxz) {
+
+		long[] found = new long[16];
+
+		int n = 0;
+
+		for (int k = cell(minz); k <= cell(maxz); k++) {
+			for (int j = cell(miny); j <= cell(maxy); j++) {
+				for (int i = cell(minx); i <= cell(maxx); i++) {
+
+					Cell c = cells.get(key(i, j, k));
+
+					if (c == null)
+						continue;
+
+					if (n + c.size > found.length)
+						found = Arrays.copyOf(found, Math.max(2 * found.length, n + c.size));
+
+					System.arraycopy(c.tracks, 0, found, n, c.size);
+
+					n += c.size;
+				}
+			}
+		}
+
+		// a track spanning several cells is listed once per cell
+
+		Arrays.sort(found, 0, n);
+
+		int unique = 0;
+
+		for (int i = 0; i < n; i++) {
+			if (unique == 0 || found[i] != found[unique - 1])
+				found[unique++] = found[i];
+		}
+
+		return Arrays.copyOf(found, unique);
+	}
+}
@@ -0,0 +1,480 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+/**
+ * Nearest neighbor search between tracks using the MDF (mean direct flip) distance.
+ * Every track is resampled to the same number of points; the distance between two
+ * tracks is the mean distance between corresponding points, taking the smaller of
+ * the two possible orientations of the second track.
+ *
+ * Two search modes are offered. exact() compares the seed with every track on
+ * several threads, abandoning a comparison as soon as it cannot beat the current
+ * k-th best. approximate() first finds candidates in a KD-tree built over a short,
+ * orientation normalized feature vector (start, middle and end points) and then
+ * ranks only those candidates by MDF.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TrackNeighbors {
+
+	public static final int DEFAULT_POINTS = 12;
+
+	private static final int LEAF_SIZE = 8;
+
+	private static final int KD_DIMS = 9;
+
+	public static class Neighbor {
+
+		public final long track;
+
+		public final float distance;
+
+		Neighbor(long track, float distance) {
+
+			this.track = track;
+			this.distance = distance;
+		}
+	}
+
+	private final long[] tracks;
+
+	private final int n;
+
+	// resampled points: track i occupies [i*3n, (i+1)*3n) as x,y,z triplets
+
+	private final float[] features;
+
+	// KD-tree over the 9 value summaries
+
+	private final float[] summaries;
+
+	private final int[] order;
+
+	private final byte[] splitDims;
+
+	private TrackNeighbors(long[] tracks, int n, float[] features) {
+
+		this.tracks = tracks;
+		this.n = n;
+		this.features = features;
+
+		int count = tracks.length;
+
+		summaries = new float[count * KD_DIMS];
+
+		for (int i = 0; i < count; i++) {
+			summarize(features, i * 3 * n, n, summaries, i * KD_DIMS);
+		}
+
+		order = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+
+		splitDims = new byte[count];
+
+		buildTree(0, count);
+	}
+
+	/**
+	 * Index all the tracks of a source.
+	 */
+	public static TrackNeighbors build(TrackSource source, int points, int threads) {
+
+		long[] all = new long[(int) source.numTracks()];
+
+		for (int i = 0; i < all.length; i++) {
+			all[i] = i;
+		}
+
+		return build(source, all, points, threads);
+	}
+
+	/**
+	 * Index a subset of the tracks of a source, for instance the result of an ROI search.
+	 */
+	public static TrackNeighbors build(final TrackSource source, final long[] tracks, final int points, int threads) {
+
+		if ((long) tracks.length * 3 * points > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("too many tracks to index at once");
+
+		final float[] features = new float[tracks.length * 3 * points];
+
+		Parallel.forRange(tracks.length, threads, new Parallel.RangeBody() {
+
+			@Override
+			public void run(int worker, long from, long to) {
+
+				TrackCoords coords = new TrackCoords();
+
+				TrackCoords resampled = new TrackCoords(points);
+
+				for (int i = (int) from; i < to; i++) {
+
+					source.read(tracks[i], coords);
+
+					TrackGeometry.resample(coords, points, resampled);
+
+					pack(resampled, features, i * 3 * points);
+				}
+			}
+		});
+
+		return new TrackNeighbors(tracks.clone(), points, features);
+	}
+
+	private static void pack(TrackCoords resampled, float[] out, int offset) {
+
+		for (int j = 0; j < resampled.count(); j++) {
+			out[offset++] = resampled.xs[j];
+			out[offset++] = resampled.ys[j];
+			out[offset++] = resampled.zs[j];
+		}
+	}
+
+	public int points() {
+
+		return n;
+	}
+
+	/**
+	 * MDF distance between two tracks already resampled to the same number of points.
+	 */
+	public static float mdf(TrackCoords a, TrackCoords b) {
+
+		if (a.count() != b.count())
+			throw new IllegalArgumentException("tracks must have the same number of points");
+
+		float[] fa = new float[3 * a.count()];
+		float[] fb = new float[3 * b.count()];
+
+		pack(a, fa, 0);
+		pack(b, fb, 0);
+
+		return mdf(fa, 0, fb, 0, a.count(), Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * MDF distance, or some value above limit as soon as the distance is known to exceed it.
+	 */
+	static float mdf(float[] a, int ao, float[] b, int bo, int n, float limit) {
+
+		double bound = (double) limit * n;
+
+		double direct = 0;
+
+		for (int i = 0; i < n && direct <= bound; i++) {
+			direct += dist(a, ao + 3 * i, b, bo + 3 * i);
+		}
+
+		if (direct < bound)
+			bound = direct;
+
+		double flipped = 0;
+
+		for (int i = 0; i < n && flipped <= bound; i++) {
+			flipped += dist(a, ao + 3 * i, b, bo + 3 * (n - 1 - i));
+		}
+
+		return (float) (Math.min(direct, flipped) / n);
+	}
+
+	private static double dist(float[] a, int i, float[] b, int j) {
+
+		double dx = a[i] - b[j];
+		double dy = a[i+1] - b[j+1];
+		double dz = a[i+2] - b[j+2];
+
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+
+	/**
+	 * The k indexed tracks nearest the seed track, closest first, found by comparing
+	 * the seed with every indexed track.
+	 */
+	public Neighbor[] exact(TrackCoords seed, int k, int threads) {
+
+		final float[] s = seedFeatures(seed);
+
+		final int numWorkers = Math.max(1, threads);
+
+		final KBest[] best = new KBest[numWorkers];
+
+		for (int w = 0; w < numWorkers; w++) {
+			best[w] = new KBest(k);
+		}
+
+		Parallel.forRange(tracks.length, numWorkers, new Parallel.RangeBody() {
+
+			@Override
+			public void run(int worker, long from, long to) {
+
+				KBest mine = best[worker];
+
+				for (int i = (int) from; i < to; i++) {
+
+					float d = mdf(s, 0, features, i * 3 * n, n, mine.worst());
+
+					mine.offer(i, d);
+				}
+			}
+		});
+
+		KBest merged = new KBest(k);
+
+		for (KBest b : best) {
+			for (int j = 0; j < b.size; j++) {
+				merged.offer(b.items[j], b.dists[j]);
+			}
+		}
+
+		return neighbors(merged);
+	}
+
+	/**
+	 * The k indexed tracks nearest the seed track, closest first, approximately. The
+	 * candidates count nearest tracks by start/middle/end summary are ranked by MDF
+	 * (at least 8k candidates are always considered).
+	 */
+	public Neighbor[] approximate(TrackCoords seed, int k, int candidates) {
+
+		float[] s = seedFeatures(seed);
+
+		float[] summary = new float[KD_DIMS];
+
+		summarize(s, 0, n, summary, 0);
+
+		KBest near = new KBest(Math.max(candidates, 8 * k));
+
+		searchTree(summary, 0, tracks.length, near);
+
+		KBest best = new KBest(k);
+
+		for (int j = 0; j < near.size; j++) {
+
+			int i = near.items[j];
+
+			best.offer(i, mdf(s, 0, features, i * 3 * n, n, best.worst()));
+		}
+
+		return neighbors(best);
+	}
+
+	private float[] seedFeatures(TrackCoords seed) {
+
+		TrackCoords resampled = new TrackCoords(n);
+
+		TrackGeometry.resample(seed, n, resampled);
+
+		float[] s = new float[3 * n];
+
+		pack(resampled, s, 0);
+
+		return s;
+	}
+
+	private Neighbor[] neighbors(KBest best) {
+
+		Neighbor[] result = new Neighbor[best.size];
+
+		for (int j = 0; j < best.size; j++) {
+			result[j] = new Neighbor(tracks[best.items[j]], best.dists[j]);
+		}
+
+		return result;
+	}
+
+	// start, middle and end points, ordered so the smaller endpoint (by x, then y, then z) comes first
+
+	private static void summarize(float[] f, int offset, int n, float[] out, int o) {
+
+		int first = offset;
+		int last = offset + 3 * (n - 1);
+		int mid = offset + 3 * (n / 2);
+
+		boolean flip = f[first] > f[last] ||
+				(f[first] == f[last] && (f[first+1] > f[last+1] ||
+						(f[first+1] == f[last+1] && f[first+2] > f[last+2])));
+
+		if (flip) {
+			int t = first;
+			first = last;
+			last = t;
+			if (n % 2 == 0)
+				mid = offset + 3 * (n / 2 - 1);
+		}
+
+		for (int i = 0; i < 3; i++) {
+			out[o + i] = f[first + i];
+			out[o + 3 + i] = f[mid + i];
+			out[o + 6 + i] = f[last + i];
+		}
+	}
+
+	// KD-tree: the range [lo,hi) of order is split at its middle element on the dimension
+	// of largest spread, which is recorded in splitDims at the middle position
+
+	private void buildTree(int lo, int hi) {
+
+		if (hi - lo <= LEAF_SIZE)
+			return;
+
+		int dim = widestDim(lo, hi);
+
+		int mid = (lo + hi) >>> 1;
+
+		select(lo, hi, mid, dim);
+
+		splitDims[mid] = (byte) dim;
+
+		buildTree(lo, mid);
+
+		buildTree(mid + 1, hi);
+	}
+
+	private int widestDim(int lo, int hi) {
+
+		int best = 0;
+
+		float bestSpread = -1;
+
+		for (int d = 0; d < KD_DIMS; d++) {
+
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+
+			for (int i = lo; i < hi; i++) {
+				float v = summaries[order[i] * KD_DIMS + d];
+				if (v < min) min = v;
+				if (v > max) max = v;
+			}
+
+			if (max - min > bestSpread) {
+				bestSpread = max - min;
+				best = d;
+			}
+		}
+
+		return best;
+	}
+
+	// quickselect: put the element of rank k (by dimension dim) at position k of order
+
+	private void select(int lo, int hi, int k, int dim) {
+
+		hi--;
+
+		while (lo < hi) {
+
+			float pivot = summaries[order[(lo + hi) >>> 1] * KD_DIMS + dim];
+
+			int i = lo;
+			int j = hi;
+
+			while (i <= j) {
+
+				while (summaries[order[i] * KD_DIMS + dim] < pivot) i++;
+				while (summaries[order[j] * KD_DIMS + dim] > pivot) j--;
+
+				if (i <= j) {
+					int t = order[i];
+					order[i] = order[j];
+					order[j] = t;
+					i++;
+					j--;
+				}
+			}
+
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private void searchTree(float[] q, int lo, int hi, KBest best) {
+
+		if (hi - lo <= LEAF_SIZE) {
+
+			for (int i = lo; i < hi; i++) {
+				best.offer(order[i], summaryDistance(q, order[i]));
+			}
+
+			return;
+		}
+
+		int mid = (lo + hi) >>> 1;
+
+		int dim = splitDims[mid];
+
+		best.offer(order[mid], summaryDistance(q, order[mid]));
+
+		float diff = q[dim] - summaries[order[mid] * KD_DIMS + dim];
+
+		if (diff < 0) {
+			searchTree(q, lo, mid, best);
+			if (Math.abs(diff) <= best.worst())
+				searchTree(q, mid + 1, hi, best);
+		}
+		else {
+			searchTree(q, mid + 1, hi, best);
+			if (Math.abs(diff) <= best.worst())
+				searchTree(q, lo, mid, best);
+		}
+	}
+
+	private float summaryDistance(float[] q, int item) {
+
+		int o = item * KD_DIMS;
+
+		double sum = 0;
+
+		for (int d = 0; d < KD_DIMS; d++) {
+			double v = q[d] - summaries[o + d];
+			sum += v * v;
+		}
+
+		return (float) Math.sqrt(sum);
+	}
+
+	// the k smallest distances seen so far, kept sorted
+
+	private static class KBest {
+
+		final int[] items;
+		final float[] dists;
+		int size;
+
+		KBest(int k) {
+			items = new int[k];
+			dists = new float[k];
+		}
+
+		float worst() {
+			return (size < items.length) ? Float.POSITIVE_INFINITY : dists[size - 1];
+		}
+
+		void offer(int item, float dist) {
+
+			if (items.length == 0 || dist >= worst())
+				return;
+
+			int pos = (size < items.length) ? size++ : size - 1;
+
+			while (pos > 0 && dists[pos - 1] > dist) {
+				items[pos] = items[pos - 1];
+				dists[pos] = dists[pos - 1];
+				pos--;
+			}
+
+			items[pos] = item;
+			dists[pos] = dist;
+		}
+	}
+}
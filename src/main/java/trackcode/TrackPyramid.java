@@ -0,0 +1,421 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Level of detail versions of every track in a tractogram, for viewers that want a
+ * coarse picture fast and full detail only when zoomed in. Level 0 is the original
+ * data. Level i keeps every factor[i]-th point of each track plus its last point
+ * (by default 1/4, 1/16 and 1/64 of the points), and never fewer than 2 points.
+ *
+ * The levels live in their own file next to the streamline data (by convention the
+ * .tck name plus ".lod"). Layout (big endian header and offsets, little endian
+ * floats):
+ *
+ *   header: magic, version, level count, then 8 factor slots, then track count
+ *   for each level: numTracks+1 longs giving each track's first point in that level
+ *   for each level: x,y,z float triplets of all its points
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TrackPyramid {
+
+	private static final int MAGIC = 0x544c4f44;  // "TLOD"
+
+	private static final int VERSION = 1;
+
+	private static final int MAX_LEVELS = 8;
+
+	private static final int HEADER_BYTES = 64;
+
+	// a whole number of points
+	private static final int WRITE_BUFFER_BYTES = 12 << 16;
+
+	public static final int[] DEFAULT_FACTORS = new int[] {4, 16, 64};
+
+	private final MappedRegions offsets;
+
+	private final MappedRegions[] data;
+
+	private final int[] factors;
+
+	private final long numTracks;
+
+	private final TrackSource fullDetail;
+
+	/**
+	 * The number of points a track of count points has after keeping every factor-th one.
+	 */
+	public static int decimatedCount(int count, int factor) {
+
+		if (count <= 2)
+			return count;
+
+		int last = count - 1;
+
+		return last / factor + 1 + ((last % factor != 0) ? 1 : 0);
+	}
+
+	private static void decimate(TrackCoords in, int factor, LevelWriter out) throws IOException {
+
+		int count = in.count();
+
+		for (int i = 0; i < count; i += (count <= 2) ? 1 : factor) {
+			out.put(in.xs[i], in.ys[i], in.zs[i]);
+		}
+
+		if (count > 2 && (count - 1) % factor != 0)
+			out.put(in.xs[count-1], in.ys[count-1], in.zs[count-1]);
+	}
+
+	// writes the points of one level for one range of tracks through a small buffer
+	// that is flushed to its place in the file whenever it fills. a worker keeps its
+	// writers and moves them to each new range it is given.
+
+	private static class LevelWriter {
+
+		private final FileChannel channel;
+
+		private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+		private long filePos;
+
+		LevelWriter(FileChannel channel) {
+
+			this.channel = channel;
+		}
+
+		// only call when the buffer has been flushed
+
+		void moveTo(long filePos) {
+
+			this.filePos = filePos;
+		}
+
+		void put(float x, float y, float z) throws IOException {
+
+			if (buffer.remaining() < 12)
+				flush();
+
+			buffer.putFloat(x);
+			buffer.putFloat(y);
+			buffer.putFloat(z);
+		}
+
+		void flush() throws IOException {
+
+			buffer.flip();
+
+			while (buffer.hasRemaining()) {
+				filePos += channel.write(buffer, filePos);
+			}
+
+			buffer.clear();
+		}
+	}
+
+	public static File sidecarFor(File tckFile) {
+
+		return new File(tckFile.getPath() + ".lod");
+	}
+
+	/**
+	 * Build the pyramid of a track source and write it to a file. The offsets are
+	 * written first in one sequential pass; then the decimated points are produced and
+	 * written in parallel, each worker writing its own range of every level. Each track
+	 * is read once and decimated into all the levels, and each level is written through
+	 * a small buffer, so memory use does not depend on the size of the tractogram.
+	 */
+	public static void build(final TrackSource source, File output, final int[] factors, int threads) throws IOException {
+
+		if (factors.length < 1 || factors.length > MAX_LEVELS)
+			throw new IllegalArgumentException("between 1 and " + MAX_LEVELS + " levels are supported");
+
+		final int numLevels = factors.length;
+
+		final long numTracks = source.numTracks();
+
+		final int numBlocks = (int) ((numTracks + Parallel.BLOCK - 1) / Parallel.BLOCK) + 1;
+
+		// the first point (within its level) of every block of tracks Parallel hands out
+
+		final long[][] blockStarts = new long[numLevels][numBlocks];
+
+		final long[] levelPoints = new long[numLevels];
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 16));
+
+		try {
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numLevels);
+			for (int i = 0; i < MAX_LEVELS; i++) {
+				out.writeInt((i < numLevels) ? factors[i] : 0);
+			}
+			out.writeLong(numTracks);
+			for (int i = 4 + 4 + 4 + 4 * MAX_LEVELS + 8; i < HEADER_BYTES; i++) {
+				out.writeByte(0);
+			}
+
+			for (int level = 0; level < numLevels; level++) {
+
+				long pos = 0;
+
+				for (long t = 0; t < numTracks; t++) {
+
+					if (t % Parallel.BLOCK == 0)
+						blockStarts[level][(int) (t / Parallel.BLOCK)] = pos;
+
+					out.writeLong(pos);
+
+					pos += decimatedCount(source.pointCount(t), factors[level]);
+				}
+
+				out.writeLong(pos);
+
+				blockStarts[level][numBlocks - 1] = pos;
+
+				levelPoints[level] = pos;
+			}
+
+		} finally {
+
+			out.close();
+		}
+
+		final long[] dataStarts = new long[numLevels];
+
+		long pos = HEADER_BYTES + numLevels * (numTracks + 1) * 8;
+
+		for (int level = 0; level < numLevels; level++) {
+
+			dataStarts[level] = pos;
+
+			pos += levelPoints[level] * 12;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(output, "rw");
+
+		try {
+
+			raf.setLength(pos);
+
+			final FileChannel channel = raf.getChannel();
+
+			// buffers are kept per worker and reused for every range it is handed
+
+			final TrackCoords[] workerCoords = new TrackCoords[Math.max(1, threads)];
+
+			final LevelWriter[][] workerWriters = new LevelWriter[Math.max(1, threads)][];
+
+			Parallel.forRange(numTracks, threads, new Parallel.RangeBody() {
+
+				@Override
+				public void run(int worker, long from, long to) throws IOException {
+
+					int block = (int) (from / Parallel.BLOCK);
+
+					if (workerWriters[worker] == null) {
+
+						workerCoords[worker] = new TrackCoords();
+
+						workerWriters[worker] = new LevelWriter[numLevels];
+
+						for (int level = 0; level < numLevels; level++) {
+							workerWriters[worker][level] = new LevelWriter(channel);
+						}
+					}
+
+					TrackCoords coords = workerCoords[worker];
+
+					LevelWriter[] writers = workerWriters[worker];
+
+					for (int level = 0; level < numLevels; level++) {
+						writers[level].moveTo(dataStarts[level] + blockStarts[level][block] * 12);
+					}
+
+					for (long t = from; t < to; t++) {
+
+						source.read(t, coords);
+
+						for (int level = 0; level < numLevels; level++) {
+							decimate(coords, factors[level], writers[level]);
+						}
+					}
+
+					for (int level = 0; level < numLevels; level++) {
+
+						writers[level].flush();
+
+						long last = (to == numTracks) ? levelPoints[level] : blockStarts[level][block + 1];
+
+						if (writers[level].filePos != dataStarts[level] + last * 12)
+							throw new IOException("track point counts changed while building the pyramid");
+					}
+				}
+			});
+
+		} finally {
+
+			raf.close();
+		}
+	}
+
+	/**
+	 * Open a pyramid file. fullDetail may be null; if given, level 0 queries read from it.
+	 */
+	public static TrackPyramid open(File file, TrackSource fullDetail) throws IOException {
+
+		return new TrackPyramid(file, fullDetail);
+	}
+
+	private TrackPyramid(File file, TrackSource fullDetail) throws IOException {
+
+		this.fullDetail = fullDetail;
+
+		MappedRegions header = new MappedRegions(file, 0, HEADER_BYTES, ByteOrder.BIG_ENDIAN);
+
+		if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+			throw new IOException("not a track pyramid file: " + file);
+
+		int numLevels = header.getInt(8);
+
+		factors = new int[numLevels];
+
+		for (int i = 0; i < numLevels; i++) {
+			factors[i] = header.getInt(12 + 4 * i);
+		}
+
+		numTracks = header.getLong(12 + 4 * MAX_LEVELS);
+
+		long offsetBytes = numLevels * (numTracks + 1) * 8;
+
+		offsets = new MappedRegions(file, HEADER_BYTES, offsetBytes, ByteOrder.BIG_ENDIAN);
+
+		data = new MappedRegions[numLevels];
+
+		long pos = HEADER_BYTES + offsetBytes;
+
+		for (int level = 0; level < numLevels; level++) {
+
+			long points = offset(level, numTracks);
+
+			data[level] = new MappedRegions(file, pos, points * 12, ByteOrder.LITTLE_ENDIAN);
+
+			pos += points * 12;
+		}
+	}
+
+	public long numTracks() {
+
+		return numTracks;
+	}
+
+	/**
+	 * The number of levels including level 0 (full detail).
+	 */
+	public int numLevels() {
+
+		return factors.length + 1;
+	}
+
+	private long offset(int storedLevel, long track) {
+
+		return offsets.getLong((storedLevel * (numTracks + 1) + track) * 8);
+	}
+
+	/**
+	 * Tracks packed one after another in a single array of x,y,z triplets. The points of
+	 * track i are triplets starts[i] up to (not including) starts[i+1].
+	 */
+	public static class Batch {
+
+		public final float[] xyz;
+
+		public final int[] starts;
+
+		Batch(float[] xyz, int[] starts) {
+
+			this.xyz = xyz;
+			this.starts = starts;
+		}
+	}
+
+	/**
+	 * Get a set of tracks at one level of detail in one contiguous buffer.
+	 */
+	public Batch fetch(int level, long[] tracks) {
+
+		if (level < 0 || level >= numLevels())
+			throw new IllegalArgumentException("level " + level + " out of range");
+
+		if (level == 0 && fullDetail == null)
+			throw new IllegalStateException("no full detail source was given");
+
+		int[] starts = new int[tracks.length + 1];
+
+		long total = 0;
+
+		for (int i = 0; i < tracks.length; i++) {
+
+			starts[i] = (int) total;
+
+			if (level == 0)
+				total += fullDetail.pointCount(tracks[i]);
+			else
+				total += offset(level - 1, tracks[i] + 1) - offset(level - 1, tracks[i]);
+		}
+
+		if (total * 3 > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("too many points for one batch");
+
+		starts[tracks.length] = (int) total;
+
+		float[] xyz = new float[(int) total * 3];
+
+		TrackCoords coords = (level == 0) ? new TrackCoords() : null;
+
+		for (int i = 0; i < tracks.length; i++) {
+
+			int p = starts[i] * 3;
+
+			if (level == 0) {
+
+				fullDetail.read(tracks[i], coords);
+
+				for (int j = 0; j < coords.count(); j++) {
+					xyz[p++] = coords.xs[j];
+					xyz[p++] = coords.ys[j];
+					xyz[p++] = coords.zs[j];
+				}
+			}
+			else {
+
+				MappedRegions levelData = data[level - 1];
+
+				long byteStart = offset(level - 1, tracks[i]) * 12;
+
+				long byteEnd = offset(level - 1, tracks[i] + 1) * 12;
+
+				for (long b = byteStart; b < byteEnd; b += 4) {
+					xyz[p++] = levelData.getFloat(b);
+				}
+			}
+		}
+
+		return new Batch(xyz, starts);
+	}
+}
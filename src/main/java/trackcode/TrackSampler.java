@@ -0,0 +1,339 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import nom.bdezonia.zorbage.storage.ragged.RaggedStorageUnsignedInt8;
+import nom.bdezonia.zorbage.type.geom.polygonalchain.PolygonalChainMember;
+
+/**
+ * Picks a subset of the tracks a decoder shows it, in one pass. Pass a sampler as
+ * the visitor of Main.scanTckFile or Main.scanTrkFile. Only the kept tracks are
+ * copied so memory use is proportional to the sample, not the file.
+ *
+ * Modes: every k-th track; a uniform random sample of fixed size (reservoir sampling
+ * with a fixed seed so runs are repeatable); or a stratified sample that keeps up to
+ * a fixed number of tracks per region, where the region of a track is the cell of a
+ * coarse VoxelGrid containing its middle point.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TrackSampler implements TrackVisitor {
+
+	private static class Reservoir {
+
+		final int capacity;
+		long[] ids = new long[16];
+		TrackCoords[] tracks = new TrackCoords[16];
+		int size;
+		long seen;
+
+		Reservoir(int capacity) {
+			this.capacity = capacity;
+		}
+
+		void offer(long id, TrackCoords coords, Random rng) {
+
+			seen++;
+
+			int slot;
+
+			if (size < capacity) {
+
+				if (size == ids.length) {
+					int newLength = (int) Math.min(capacity, 2L * size);
+					ids = Arrays.copyOf(ids, newLength);
+					tracks = Arrays.copyOf(tracks, newLength);
+				}
+
+				slot = size++;
+			}
+			else {
+
+				long j = (long) (rng.nextDouble() * seen);
+
+				if (j >= capacity)
+					return;
+
+				slot = (int) j;
+			}
+
+			ids[slot] = id;
+
+			// reuse the evicted track's arrays when there is one
+
+			if (tracks[slot] == null)
+				tracks[slot] = coords.duplicate();
+			else
+				tracks[slot].set(coords);
+		}
+	}
+
+	private final long k;
+
+	private final VoxelGrid regions;
+
+	private final int perReservoir;
+
+	private final Random rng;
+
+	private final Reservoir everything;
+
+	private final HashMap<Long, Reservoir> strata = new HashMap<>();
+
+	private long seen;
+
+	private TrackSampler(long k, VoxelGrid regions, int perReservoir, long seed) {
+
+		this.k = k;
+		this.regions = regions;
+		this.perReservoir = perReservoir;
+		this.rng = new Random(seed);
+		this.everything = (regions == null) ? new Reservoir(perReservoir) : null;
+	}
+
+	/**
+	 * Keep tracks 0, k, 2k, ...
+	 */
+	public static TrackSampler everyKth(long k) {
+
+		if (k < 1)
+			throw new IllegalArgumentException("k must be at least 1");
+
+		return new TrackSampler(k, null, Integer.MAX_VALUE, 0);
+	}
+
+	/**
+	 * Keep a uniform random sample of size tracks.
+	 */
+	public static TrackSampler reservoir(int size, long seed) {
+
+		return new TrackSampler(0, null, size, seed);
+	}
+
+	/**
+	 * Keep a uniform random sample of up to perRegion tracks from each cell of regions.
+	 * Tracks whose middle lies outside the grid form one more stratum of their own.
+	 * Empty tracks are never kept.
+	 */
+	public static TrackSampler stratified(VoxelGrid regions, int perRegion, long seed) {
+
+		return new TrackSampler(0, regions, perRegion, seed);
+	}
+
+	@Override
+	public void visit(long track, TrackCoords coords) {
+
+		seen++;
+
+		if (k > 0) {
+
+			if (track % k == 0)
+				everything.offer(track, coords, rng);
+
+			return;
+		}
+
+		if (regions == null) {
+
+			everything.offer(track, coords, rng);
+
+			return;
+		}
+
+		// an empty track has no middle point to place it by
+
+		if (coords.count() == 0)
+			return;
+
+		int mid = coords.count() / 2;
+
+		Long key = regions.voxel(coords.xs[mid], coords.ys[mid], coords.zs[mid]);
+
+		Reservoir stratum = strata.get(key);
+
+		if (stratum == null) {
+
+			stratum = new Reservoir(perReservoir);
+
+			strata.put(key, stratum);
+		}
+
+		stratum.offer(track, coords, rng);
+	}
+
+	/**
+	 * The number of tracks the sampler has been shown.
+	 */
+	public long seen() {
+
+		return seen;
+	}
+
+	/**
+	 * The kept tracks in original file order. The arrays of the result have equal length:
+	 * trackNumbers()[i] is the original number of tracks()[i].
+	 */
+	public Sample sample() {
+
+		List<Reservoir> all = new ArrayList<>();
+
+		if (everything != null)
+			all.add(everything);
+		else
+			all.addAll(strata.values());
+
+		int total = 0;
+
+		for (Reservoir r : all) {
+			total += r.size;
+		}
+
+		final long[] ids = new long[total];
+
+		final TrackCoords[] tracks = new TrackCoords[total];
+
+		int pos = 0;
+
+		for (Reservoir r : all) {
+
+			System.arraycopy(r.ids, 0, ids, pos, r.size);
+
+			System.arraycopy(r.tracks, 0, tracks, pos, r.size);
+
+			pos += r.size;
+		}
+
+		Integer[] order = new Integer[total];
+
+		for (int i = 0; i < total; i++) {
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(ids[a], ids[b]);
+			}
+		});
+
+		Sample sample = new Sample(total);
+
+		for (int i = 0; i < total; i++) {
+
+			sample.trackNumbers[i] = ids[order[i]];
+
+			sample.tracks[i] = tracks[order[i]];
+		}
+
+		return sample;
+	}
+
+	public static class Sample {
+
+		public final long[] trackNumbers;
+
+		public final TrackCoords[] tracks;
+
+		Sample(int size) {
+
+			trackNumbers = new long[size];
+			tracks = new TrackCoords[size];
+		}
+
+		public int size() {
+
+			return tracks.length;
+		}
+
+		public long numPoints() {
+
+			long sum = 0;
+
+			for (TrackCoords track : tracks) {
+				sum += track.count();
+			}
+
+			return sum;
+		}
+
+		/**
+		 * Copy the sample into ragged storage sized for exactly these tracks.
+		 */
+		public RaggedStorageUnsignedInt8<PolygonalChainMember> toStorage() {
+
+			long numTracks = tracks.length;
+
+			RaggedStorageUnsignedInt8<PolygonalChainMember> data =
+					new RaggedStorageUnsignedInt8<>(numTracks, ((1 + 7) * 4 * numTracks) + (3 * 4 * numPoints()));
+
+			for (int i = 0; i < tracks.length; i++) {
+				data.place(i, tracks[i].toChain());
+			}
+
+			return data;
+		}
+
+		public void writeTo(TckWriter writer) throws IOException {
+
+			for (TrackCoords track : tracks) {
+				writer.write(track);
+			}
+		}
+	}
+
+	/**
+	 * Copy every k-th track of a .tck file to a new .tck file without buffering any tracks.
+	 * Returns the number of tracks written.
+	 */
+	public static long copyEveryKth(String inputFilename, String outputFilename, final long k) throws IOException {
+
+		if (k < 1)
+			throw new IllegalArgumentException("k must be at least 1");
+
+		final TckWriter writer = new TckWriter(outputFilename);
+
+		final IOException[] failure = new IOException[1];
+
+		try {
+
+			Main.scanTckFile(inputFilename, null, new TrackVisitor() {
+
+				@Override
+				public void visit(long track, TrackCoords coords) {
+
+					if (track % k != 0 || failure[0] != null)
+						return;
+
+					try {
+
+						writer.write(coords);
+
+					} catch (IOException e) {
+
+						failure[0] = e;
+					}
+				}
+			});
+
+		} finally {
+
+			writer.close();
+		}
+
+		if (failure[0] != null)
+			throw failure[0];
+
+		return writer.count();
+	}
+}
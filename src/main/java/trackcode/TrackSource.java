@@ -0,0 +1,21 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+/**
+ * Random access to the tracks of a tractogram by track number. Implementations
+ * must allow concurrent reads from multiple threads as long as each thread
+ * passes its own TrackCoords.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public interface TrackSource {
+
+	long numTracks();
+
+	int pointCount(long track);
+
+	void read(long track, TrackCoords coords);
+}
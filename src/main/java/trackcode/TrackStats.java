@@ -0,0 +1,239 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * Per track geometric measurements stored in primitive columns indexed by track
+ * number. All the selected metrics are calculated together in one walk over each
+ * track's points. Use compute() to measure an existing TrackSource in parallel, or
+ * pass a TrackStats to a loader as its TrackVisitor to measure tracks as they are
+ * read so the file never has to be read twice.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TrackStats implements TrackVisitor {
+
+	public enum Metric {
+		LENGTH,				// sum of segment lengths
+		POINT_COUNT,		// number of points
+		CURVATURE,			// total turning angle in radians divided by length
+		ENDPOINT_DISTANCE	// straight line distance between first and last points
+	}
+
+	private final boolean doLength;
+	private final boolean doCount;
+	private final boolean doCurvature;
+	private final boolean doEndpoints;
+
+	private float[] lengths;
+	private int[] pointCounts;
+	private float[] curvatures;
+	private float[] endpointDistances;
+
+	private long size;
+
+	public TrackStats(EnumSet<Metric> metrics) {
+
+		this(metrics, 1024);
+	}
+
+	public TrackStats(EnumSet<Metric> metrics, long capacity) {
+
+		doLength = metrics.contains(Metric.LENGTH);
+		doCount = metrics.contains(Metric.POINT_COUNT);
+		doCurvature = metrics.contains(Metric.CURVATURE);
+		doEndpoints = metrics.contains(Metric.ENDPOINT_DISTANCE);
+
+		int cap = (int) capacity;
+
+		if (doLength) lengths = new float[cap];
+		if (doCount) pointCounts = new int[cap];
+		if (doCurvature) curvatures = new float[cap];
+		if (doEndpoints) endpointDistances = new float[cap];
+	}
+
+	/**
+	 * Measure every track of a source using the given number of threads.
+	 */
+	public static TrackStats compute(final TrackSource source, EnumSet<Metric> metrics, int threads) {
+
+		final TrackStats stats = new TrackStats(metrics, source.numTracks());
+
+		stats.size = source.numTracks();
+
+		Parallel.forRange(source.numTracks(), threads, new Parallel.RangeBody() {
+
+			@Override
+			public void run(int worker, long from, long to) {
+
+				TrackCoords coords = new TrackCoords();
+
+				for (long i = from; i < to; i++) {
+
+					source.read(i, coords);
+
+					stats.measure((int) i, coords);
+				}
+			}
+		});
+
+		return stats;
+	}
+
+	/**
+	 * Record the measurements of a track. Loaders call this in track order.
+	 */
+	@Override
+	public void visit(long track, TrackCoords coords) {
+
+		if (track >= capacity())
+			grow(Math.max(track + 1, capacity() * 2));
+
+		measure((int) track, coords);
+
+		if (track >= size)
+			size = track + 1;
+	}
+
+	public long size() {
+
+		return size;
+	}
+
+	public float length(long track) {
+
+		return lengths[(int) track];
+	}
+
+	public int pointCount(long track) {
+
+		return pointCounts[(int) track];
+	}
+
+	public float curvature(long track) {
+
+		return curvatures[(int) track];
+	}
+
+	public float endpointDistance(long track) {
+
+		return endpointDistances[(int) track];
+	}
+
+	// the whole columns are exposed for fast filtering. only the first size() entries are valid.
+
+	public float[] lengths() {
+
+		return lengths;
+	}
+
+	public int[] pointCounts() {
+
+		return pointCounts;
+	}
+
+	public float[] curvatures() {
+
+		return curvatures;
+	}
+
+	public float[] endpointDistances() {
+
+		return endpointDistances;
+	}
+
+	private void measure(int track, TrackCoords coords) {
+
+		float[] xs = coords.xs;
+		float[] ys = coords.ys;
+		float[] zs = coords.zs;
+
+		int count = coords.count();
+
+		double length = 0;
+
+		double turning = 0;
+
+		// previous nonzero segment direction
+
+		double px = 0, py = 0, pz = 0, plen = 0;
+
+		if (doLength || doCurvature) {
+
+			for (int i = 1; i < count; i++) {
+
+				double dx = xs[i] - xs[i-1];
+				double dy = ys[i] - ys[i-1];
+				double dz = zs[i] - zs[i-1];
+
+				double len = Math.sqrt(dx*dx + dy*dy + dz*dz);
+
+				length += len;
+
+				if (doCurvature && len > 0) {
+
+					if (plen > 0) {
+
+						double cos = (px*dx + py*dy + pz*dz) / (plen * len);
+
+						turning += Math.acos(Math.max(-1, Math.min(1, cos)));
+					}
+
+					px = dx;
+					py = dy;
+					pz = dz;
+					plen = len;
+				}
+			}
+		}
+
+		if (doLength)
+			lengths[track] = (float) length;
+
+		if (doCount)
+			pointCounts[track] = count;
+
+		if (doCurvature)
+			curvatures[track] = (length > 0) ? (float) (turning / length) : 0;
+
+		if (doEndpoints) {
+
+			if (count == 0) {
+
+				endpointDistances[track] = 0;
+			}
+			else {
+
+				double dx = xs[count-1] - xs[0];
+				double dy = ys[count-1] - ys[0];
+				double dz = zs[count-1] - zs[0];
+
+				endpointDistances[track] = (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+			}
+		}
+	}
+
+	private long capacity() {
+
+		if (lengths != null) return lengths.length;
+		if (pointCounts != null) return pointCounts.length;
+		if (curvatures != null) return curvatures.length;
+		if (endpointDistances != null) return endpointDistances.length;
+		return Long.MAX_VALUE;
+	}
+
+	private void grow(long newCapacity) {
+
+		int cap = (int) Math.min(Integer.MAX_VALUE - 8, newCapacity);
+
+		if (lengths != null) lengths = Arrays.copyOf(lengths, cap);
+		if (pointCounts != null) pointCounts = Arrays.copyOf(pointCounts, cap);
+		if (curvatures != null) curvatures = Arrays.copyOf(curvatures, cap);
+		if (endpointDistances != null) endpointDistances = Arrays.copyOf(endpointDistances, cap);
+	}
+}
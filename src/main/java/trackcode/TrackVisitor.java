@@ -0,0 +1,16 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+/**
+ * Receives tracks one at a time as a loader decodes them. The coords object is
+ * reused by the loader so a visitor must copy anything it wants to keep.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public interface TrackVisitor {
+
+	void visit(long track, TrackCoords coords);
+}
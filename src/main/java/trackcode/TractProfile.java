@@ -0,0 +1,241 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+/**
+ * Along-tract profiles of a scalar volume. Each track is resampled to n evenly spaced
+ * points and the volume is sampled at each of them, giving an n by tracks matrix of
+ * values. The mean and standard deviation of each position over all tracks are
+ * gathered at the same time.
+ *
+ * Tracks in a bundle are not always stored in the same direction. When asked to align
+ * them, each track is reversed if its start is nearer the end of the first track than
+ * its start, so position 0 means the same end of the bundle for every track.
+ *
+ * Positions that fall outside the volume are NaN in the matrix and are left out of
+ * the statistics.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TractProfile {
+
+	private final int n;
+
+	private final long[] tracks;
+
+	// track major: the profile of track t is values[t*n .. t*n+n-1]
+
+	private final float[] values;
+
+	private final double[] means;
+
+	private final double[] stdDevs;
+
+	private final long[] counts;
+
+	private TractProfile(int n, long[] tracks, float[] values, double[] means, double[] stdDevs, long[] counts) {
+
+		this.n = n;
+		this.tracks = tracks;
+		this.values = values;
+		this.means = means;
+		this.stdDevs = stdDevs;
+		this.counts = counts;
+	}
+
+	/**
+	 * Profile the given tracks of a source, n positions per track.
+	 */
+	public static TractProfile compute(final TrackSource source, final long[] tracks, final ScalarVolume volume,
+										final int n, final boolean align, int threads)
+	{
+		if (n < 2)
+			throw new IllegalArgumentException("a profile needs at least two positions");
+
+		if ((long) tracks.length * n > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("too many tracks to profile at once");
+
+		final float[] values = new float[tracks.length * n];
+
+		// the ends of the first track decide the direction of the others
+
+		final float[] reference = new float[6];
+
+		if (align && tracks.length > 0) {
+
+			TrackCoords first = new TrackCoords();
+
+			TrackCoords resampled = new TrackCoords(n);
+
+			source.read(tracks[0], first);
+
+			TrackGeometry.resample(first, n, resampled);
+
+			reference[0] = resampled.xs[0];
+			reference[1] = resampled.ys[0];
+			reference[2] = resampled.zs[0];
+			reference[3] = resampled.xs[n - 1];
+			reference[4] = resampled.ys[n - 1];
+			reference[5] = resampled.zs[n - 1];
+		}
+
+		final int numWorkers = Math.max(1, threads);
+
+		// per worker running mean and sum of squared deviations (Welford), which stay
+		// accurate where a sum of squares minus a squared mean cancels badly
+
+		final double[][] workerMeans = new double[numWorkers][n];
+		final double[][] workerM2s = new double[numWorkers][n];
+		final long[][] workerCounts = new long[numWorkers][n];
+
+		Parallel.forRange(tracks.length, numWorkers, new Parallel.RangeBody() {
+
+			@Override
+			public void run(int worker, long from, long to) {
+
+				TrackCoords coords = new TrackCoords();
+
+				TrackCoords resampled = new TrackCoords(n);
+
+				double[] mean = workerMeans[worker];
+				double[] m2 = workerM2s[worker];
+				long[] count = workerCounts[worker];
+
+				for (int t = (int) from; t < to; t++) {
+
+					source.read(tracks[t], coords);
+
+					TrackGeometry.resample(coords, n, resampled);
+
+					boolean reverse = align && resampled.count() == n &&
+							distSq(resampled, 0, reference, 3) < distSq(resampled, 0, reference, 0);
+
+					int base = t * n;
+
+					for (int i = 0; i < n; i++) {
+
+						float value = Float.NaN;
+
+						if (i < resampled.count()) {
+
+							int p = reverse ? n - 1 - i : i;
+
+							value = volume.sample(resampled.xs[p], resampled.ys[p], resampled.zs[p]);
+						}
+
+						values[base + i] = value;
+
+						if (!Float.isNaN(value)) {
+							count[i]++;
+							double delta = value - mean[i];
+							mean[i] += delta / count[i];
+							m2[i] += delta * (value - mean[i]);
+						}
+					}
+				}
+			}
+		});
+
+		double[] means = new double[n];
+		double[] stdDevs = new double[n];
+		long[] counts = new long[n];
+
+		for (int i = 0; i < n; i++) {
+
+			double mean = 0;
+			double m2 = 0;
+			long count = 0;
+
+			// combine the workers' partial results (Chan, Golub and LeVeque)
+
+			for (int w = 0; w < numWorkers; w++) {
+
+				long other = workerCounts[w][i];
+
+				if (other == 0)
+					continue;
+
+				long total = count + other;
+
+				double delta = workerMeans[w][i] - mean;
+
+				mean += delta * other / total;
+				m2 += workerM2s[w][i] + delta * delta * ((double) count * other / total);
+				count = total;
+			}
+
+			counts[i] = count;
+
+			if (count == 0) {
+				means[i] = Double.NaN;
+				stdDevs[i] = Double.NaN;
+			}
+			else {
+				means[i] = mean;
+				stdDevs[i] = Math.sqrt(m2 / count);
+			}
+		}
+
+		return new TractProfile(n, tracks.clone(), values, means, stdDevs, counts);
+	}
+
+	private static float distSq(TrackCoords c, int p, float[] ref, int r) {
+
+		float dx = c.xs[p] - ref[r];
+		float dy = c.ys[p] - ref[r+1];
+		float dz = c.zs[p] - ref[r+2];
+
+		return dx*dx + dy*dy + dz*dz;
+	}
+
+	public int positions() {
+
+		return n;
+	}
+
+	public int numTracks() {
+
+		return tracks.length;
+	}
+
+	/**
+	 * The source track number of profile column t.
+	 */
+	public long track(int t) {
+
+		return tracks[t];
+	}
+
+	public float value(int position, int t) {
+
+		return values[t * n + position];
+	}
+
+	/**
+	 * The raw matrix, track major: the profile of column t is at t*positions() and on.
+	 */
+	public float[] values() {
+
+		return values;
+	}
+
+	public double mean(int position) {
+
+		return means[position];
+	}
+
+	public double stdDev(int position) {
+
+		return stdDevs[position];
+	}
+
+	/**
+	 * The number of tracks with a value inside the volume at a position.
+	 */
+	public long count(int position) {
+
+		return counts[position];
+	}
+}
@@ -0,0 +1,83 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+/**
+ * A regular 3d grid of voxels: dimensions, voxel sizes and the world position of
+ * the corner of voxel 0,0,0. Voxels are stored x fastest, then y, then z.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class VoxelGrid {
+
+	public final int nx, ny, nz;
+
+	public final float sx, sy, sz;
+
+	public final float ox, oy, oz;
+
+	public VoxelGrid(int nx, int ny, int nz, float sx, float sy, float sz, float ox, float oy, float oz) {
+
+		if (nx < 1 || ny < 1 || nz < 1)
+			throw new IllegalArgumentException("grid dimensions must be positive");
+
+		if (!(sx > 0 && sy > 0 && sz > 0))
+			throw new IllegalArgumentException("voxel sizes must be positive");
+
+		this.nx = nx;
+		this.ny = ny;
+		this.nz = nz;
+		this.sx = sx;
+		this.sy = sy;
+		this.sz = sz;
+		this.ox = ox;
+		this.oy = oy;
+		this.oz = oz;
+	}
+
+	/**
+	 * The grid a .trk file's points live on. TrackVis stores points in voxmm space:
+	 * millimeters measured from the corner of the first voxel.
+	 */
+	public static VoxelGrid fromHeader(Main.TrakHeader header) {
+
+		return new VoxelGrid(header.xDim, header.yDim, header.zDim,
+								header.xScale, header.yScale, header.zScale,
+								0, 0, 0);
+	}
+
+	public long numVoxels() {
+
+		return ((long) nx) * ny * nz;
+	}
+
+	public float minVoxelSize() {
+
+		return Math.min(sx, Math.min(sy, sz));
+	}
+
+	/**
+	 * The index of the voxel containing a point or -1 if the point is outside the grid.
+	 * A point with a NaN coordinate is outside every grid.
+	 */
+	public long voxel(float x, float y, float z) {
+
+		double i = Math.floor((x - ox) / sx);
+		double j = Math.floor((y - oy) / sy);
+		double k = Math.floor((z - oz) / sz);
+
+		// tested before any cast: (int) NaN is 0, which would be a voxel inside the grid
+
+		if (!(i >= 0 && i < nx && j >= 0 && j < ny && k >= 0 && k < nz))
+			return -1;
+
+		return index((int) i, (int) j, (int) k);
+	}
+
+	public long index(int i, int j, int k) {
+
+		return (((long) k) * ny + j) * nx + i;
+	}
+}
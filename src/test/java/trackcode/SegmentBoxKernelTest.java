@@ -0,0 +1,126 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import nom.bdezonia.zorbage.algebra.G;
+import nom.bdezonia.zorbage.type.geom.polygonalchain.PolygonalChainMember;
+
+/**
+ * The kernel must agree with G.CHAIN.intersect(), which it replaces, including on
+ * segments that touch or lie on the faces and edges of the box.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class SegmentBoxKernelTest {
+
+	// the box is [1,3] on every axis
+
+	private static final float LO = 1;
+
+	private static final float HI = 3;
+
+	@Test
+	public void facesEdgesAndCorners() {
+
+		// lies in the face x = 1
+
+		check(true, 1, 1.5f, 1.5f, 1, 2.5f, 2.5f);
+
+		// runs along the edge x = 1, y = 1
+
+		check(true, 1, 1, 0, 1, 1, 4);
+
+		// ends exactly on the corner
+
+		check(true, 0, 0, 0, 1, 1, 1);
+
+		// ends exactly on a face
+
+		check(true, 0, 2, 2, 1, 2, 2);
+
+		// crosses an edge at a single point
+
+		check(true, 0, 2, 1, 2, 0, 1);
+
+		// lies in the plane of a face but outside the box
+
+		check(false, 3, 3.5f, 0, 3, 3.5f, 4);
+
+		// parallel to a face just outside it
+
+		check(false, 0.99f, 0, 2, 0.99f, 4, 2);
+
+		// passes by an edge without touching it
+
+		check(false, 0, 0.5f, 2, 0.5f, 0, 2);
+
+		// a one point track on the corner
+
+		check(true, new float[] {3}, new float[] {3}, new float[] {3});
+	}
+
+	@Test
+	public void latticeTracks() {
+
+		// half unit lattice points around the box hit faces, edges and corners often
+
+		Random rng = new Random(1234);
+
+		for (int trial = 0; trial < 20000; trial++) {
+
+			int count = 1 + rng.nextInt(20);
+
+			float[] xs = new float[count];
+			float[] ys = new float[count];
+			float[] zs = new float[count];
+
+			for (int i = 0; i < count; i++) {
+				xs[i] = rng.nextInt(9) * 0.5f;
+				ys[i] = rng.nextInt(9) * 0.5f;
+				zs[i] = rng.nextInt(9) * 0.5f;
+			}
+
+			check(chain(xs, ys, zs), xs, ys, zs);
+		}
+	}
+
+	private static void check(boolean expected, float x0, float y0, float z0, float x1, float y1, float z1) {
+
+		float[] xs = new float[] {x0, x1};
+		float[] ys = new float[] {y0, y1};
+		float[] zs = new float[] {z0, z1};
+
+		assertEquals(expected, chain(xs, ys, zs));
+
+		check(expected, xs, ys, zs);
+	}
+
+	private static void check(boolean expected, float[] xs, float[] ys, float[] zs) {
+
+		int count = xs.length;
+
+		assertEquals(expected, SegmentBoxKernel.intersects(LO, LO, LO, HI, HI, HI, xs, ys, zs, count));
+
+		if (count > 1) {
+
+			assertEquals(expected, SegmentBoxKernel.scalar(LO, LO, LO, HI, HI, HI, xs, ys, zs, count));
+
+			assertEquals(expected, SegmentBoxKernel.blocked(LO, LO, LO, HI, HI, HI, xs, ys, zs, count));
+		}
+	}
+
+	private static boolean chain(float[] xs, float[] ys, float[] zs) {
+
+		PolygonalChainMember chain = new PolygonalChainMember(xs.clone(), ys.clone(), zs.clone());
+
+		return G.CHAIN.intersect().call(LO, LO, LO, HI, HI, HI, chain);
+	}
+}
@@ -0,0 +1,194 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import nom.bdezonia.zorbage.tuple.Tuple2;
+
+/**
+ * A .tck file cut short, even in the middle of a triplet, must keep every track that
+ * was completely written before the cut and report the cut one as truncated.
+ *
+ * @author Barry DeZonia
+ *
+ */
+public class TckTruncationTest {
+
+	private static final int NUM_TRACKS = 50;
+
+	private static TrackCoords track(int t) {
+
+		TrackCoords coords = new TrackCoords();
+
+		for (int i = 0; i < 3 + (t % 11); i++) {
+			coords.add(t + 0.25f * i, -t - 0.5f * i, 100 + i);
+		}
+
+		return coords;
+	}
+
+	private static File write() throws IOException {
+
+		File file = File.createTempFile("truncation", ".tck");
+
+		TckWriter writer = new TckWriter(file.getPath());
+
+		try {
+
+			for (int t = 0; t < NUM_TRACKS; t++) {
+				writer.write(track(t));
+			}
+
+		} finally {
+
+			writer.close();
+		}
+
+		return file;
+	}
+
+	private static void cut(File file, long length) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+
+			raf.setLength(length);
+
+		} finally {
+
+			raf.close();
+		}
+	}
+
+	// the number of tracks whose points and delimiter all lie before length
+
+	private static int completeTracks(long dataOffset, long length) {
+
+		long end = dataOffset;
+
+		for (int t = 0; t < NUM_TRACKS; t++) {
+
+			end += 12L * (track(t).count() + 1);
+
+			if (end > length)
+				return t;
+		}
+
+		return NUM_TRACKS;
+	}
+
+	@Test
+	public void cutsInsideTriplets() throws IOException {
+
+		File original = write();
+
+		try {
+
+			long length = original.length();
+
+			long dataOffset = Main.readTckLayout(original).dataOffset;
+
+			long middle = dataOffset + (length - dataOffset) / 2;
+
+			// cuts inside the end marker, inside a point in the middle of the data, and
+			// on a triplet boundary in the middle of a track
+
+			long[] cuts = new long[] {length - 7, length - 4, length / 2, middle - (middle - dataOffset) % 12 + 5,
+										dataOffset + 12 * 2};
+
+			for (long cut : cuts) {
+
+				File file = write();
+
+				try {
+
+					cut(file, cut);
+
+					check(file, completeTracks(dataOffset, cut));
+
+				} finally {
+
+					file.delete();
+				}
+			}
+
+		} finally {
+
+			original.delete();
+		}
+	}
+
+	private static void check(File file, int expected) throws IOException {
+
+		final List<TrackCoords> kept = new ArrayList<>();
+
+		List<TrackFormatException> errors = new ArrayList<>();
+
+		long count = Main.scanTckFile(file.getPath(), null, new TrackVisitor() {
+
+			@Override
+			public void visit(long track, TrackCoords coords) {
+
+				kept.add(coords.duplicate());
+			}
+		}, errors);
+
+		assertEquals(expected, count);
+
+		assertEquals(expected, kept.size());
+
+		for (int t = 0; t < expected; t++) {
+
+			TrackCoords want = track(t);
+
+			TrackCoords got = kept.get(t);
+
+			assertEquals(want.count(), got.count());
+
+			for (int i = 0; i < want.count(); i++) {
+				assertEquals(want.xs[i], got.xs[i], 0);
+				assertEquals(want.ys[i], got.ys[i], 0);
+				assertEquals(want.zs[i], got.zs[i], 0);
+			}
+		}
+
+		assertEquals(1, errors.size());
+
+		assertEquals(TrackFormatException.Kind.TRUNCATED_TRACK, errors.get(0).kind());
+
+		assertEquals(expected, errors.get(0).track());
+
+		// the count pass agrees with the load pass
+
+		errors.clear();
+
+		Tuple2<Long, Long> totals = Main.preprocessTckFile(file.getPath(), null, errors);
+
+		assertEquals(expected, totals.a().longValue());
+
+		// without an error list the cut is an error
+
+		try {
+
+			Main.scanTckFile(file.getPath(), null, null, null);
+
+			fail("a truncated file was accepted");
+
+		} catch (TrackFormatException e) {
+
+			assertEquals(TrackFormatException.Kind.TRUNCATED_TRACK, e.kind());
+		}
+	}
+}
@@ -0,0 +1,61 @@
+// Copyright Barry DeZonia 2021-2022
+// All rights reserved
+
+package trackcode;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author Barry DeZonia
+ *
+ */
+public class VoxelGridTest {
+
+	private final VoxelGrid grid = new VoxelGrid(4, 5, 6, 2, 2, 2, -4, -5, -6);
+
+	@Test
+	public void pointsInsideAndOutside() {
+
+		assertEquals(0, grid.voxel(-4, -5, -6));
+
+		assertEquals(grid.index(3, 4, 5), grid.voxel(3.9f, 4.9f, 5.9f));
+
+		assertEquals(-1, grid.voxel(4, 0, 0));
+
+		assertEquals(-1, grid.voxel(-4.1f, 0, 0));
+
+		assertEquals(-1, grid.voxel(Float.POSITIVE_INFINITY, 0, 0));
+
+		assertEquals(-1, grid.voxel(0, Float.NEGATIVE_INFINITY, 0));
+	}
+
+	@Test
+	public void nanIsOutside() {
+
+		assertEquals(-1, grid.voxel(Float.NaN, 0, 0));
+
+		assertEquals(-1, grid.voxel(0, Float.NaN, 0));
+
+		assertEquals(-1, grid.voxel(0, 0, Float.NaN));
+
+		assertEquals(-1, grid.voxel(Float.NaN, Float.NaN, Float.NaN));
+	}
+
+	@Test
+	public void nanPointsAreNotCounted() {
+
+		TrackDensityMap map = new TrackDensityMap(grid);
+
+		TrackCoords coords = new TrackCoords();
+
+		coords.add(Float.NaN, Float.NaN, Float.NaN);
+
+		map.add(coords);
+
+		for (int count : map.counts()) {
+			assertEquals(0, count);
+		}
+	}
+}